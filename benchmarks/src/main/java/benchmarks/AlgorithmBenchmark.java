@@ -0,0 +1,48 @@
+package benchmarks;
+
+import ascii_art.AsciiArtAlgorithm;
+import image.Image;
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Benchmarks building an AsciiArtAlgorithm and running it, sequentially and in parallel.
+ */
+@State(Scope.Benchmark)
+public class AlgorithmBenchmark {
+    @Param({"500", "1100", "2500"})
+    public int size;
+
+    @Param({"32", "128", "512"})
+    public int resolution;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private Image image;
+    private SubImgCharMatcher matcher;
+    private AsciiArtAlgorithm algorithm;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = new Image(BenchmarkImages.write(size).getPath());
+        matcher = new SubImgCharMatcher("0123456789".toCharArray());
+        algorithm = new AsciiArtAlgorithm(image, resolution, matcher, parallelism);
+    }
+
+    @Benchmark
+    public AsciiArtAlgorithm construct() {
+        return new AsciiArtAlgorithm(image, resolution, matcher, parallelism);
+    }
+
+    @Benchmark
+    public char[][] run() {
+        return algorithm.run();
+    }
+}
@@ -0,0 +1,42 @@
+package benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes deterministic synthetic JPEG images of a given size for the benchmarks, so that the results
+ * do not depend on the sample images of the repository.
+ */
+final class BenchmarkImages {
+    private static final long SEED = 42;
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * Writes a square image with gradients and noise to a temporary file
+     *
+     * @param size width and height of the image in pixels
+     * @return the image file, deleted when the JVM exits
+     * @throws IOException if the file cannot be written
+     */
+    static File write(int size) throws IOException {
+        Random random = new Random(SEED);
+        BufferedImage im = new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int red = 255 * x / size;
+                int green = 255 * y / size;
+                int blue = random.nextInt(256);
+                im.setRGB(x, y, red << 16 | green << 8 | blue);
+            }
+        }
+        File file = File.createTempFile("bench" + size, ".jpeg");
+        file.deleteOnExit();
+        ImageIO.write(im, "jpeg", file);
+        return file;
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import image.Image;
+import image.ImageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmarks image loading, padding and sub-image grayscale extraction.
+ * load runs with the scalar luminance kernel, and loadVector with the Vector API kernel.
+ */
+@State(Scope.Benchmark)
+public class ImageBenchmark {
+    @Param({"500", "1100", "2500"})
+    public int size;
+
+    @Param({"32", "128", "512"})
+    public int resolution;
+
+    private File file;
+    private Image image;
+    private Image padded;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = BenchmarkImages.write(size);
+        image = new Image(file.getPath());
+        padded = ImageParser.padImage(image);
+    }
+
+    @Benchmark
+    public Image load() throws IOException {
+        return new Image(file.getPath());
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+    public Image loadVector() throws IOException {
+        return new Image(file.getPath());
+    }
+
+    @Benchmark
+    public Image pad() {
+        return ImageParser.padImage(image);
+    }
+
+    @Benchmark
+    public double[][] extractSubImageGrayscale() {
+        return ImageParser.extractSubImageGrayscale(padded, resolution);
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import image_char_matching.SubImgCharMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks building a SubImgCharMatcher and looking up chars by brightness.
+ */
+@State(Scope.Benchmark)
+public class MatcherBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    @Param({"digits", "all"})
+    public String charset;
+
+    private char[] chars;
+    private SubImgCharMatcher matcher;
+    private final double[] brightness = new double[LOOKUPS];
+
+    @Setup
+    public void setUp() {
+        if (charset.equals("all")) {
+            chars = new char[95];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (32 + i);
+            }
+        } else {
+            chars = "0123456789".toCharArray();
+        }
+        matcher = new SubImgCharMatcher(chars);
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++) {
+            brightness[i] = random.nextDouble();
+        }
+    }
+
+    @Benchmark
+    public SubImgCharMatcher construct() {
+        return new SubImgCharMatcher(chars);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int lookup() {
+        int sum = 0;
+        for (double value : brightness) {
+            sum += matcher.getCharByImageBrightness(value);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Benchmarks both AsciiOutput implementations. The console output writes to a discarding writer, so
+ * only the formatting is measured, and the HTML output writes to a temporary file.
+ */
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+    @Param({"32", "128", "512"})
+    public int resolution;
+
+    private char[][] chars;
+    private ConsoleAsciiOutput console;
+    private HtmlAsciiOutput html;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        chars = new char[resolution][resolution];
+        for (char[] row : chars) {
+            for (int col = 0; col < row.length; col++) {
+                row[col] = (char) (32 + random.nextInt(95));
+            }
+        }
+        console = new ConsoleAsciiOutput(Writer.nullWriter());
+        File file = File.createTempFile("bench", ".html");
+        file.deleteOnExit();
+        html = new HtmlAsciiOutput(file.getPath(), "Courier New");
+    }
+
+    @Benchmark
+    public void console() {
+        console.out(chars);
+    }
+
+    @Benchmark
+    public void html() {
+        html.out(chars);
+    }
+}
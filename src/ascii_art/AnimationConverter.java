@@ -0,0 +1,407 @@
+package ascii_art;
+
+import ascii_output.AnimationOutput;
+import ascii_output.AnsiAnimationOutput;
+import ascii_output.HtmlAnimationOutput;
+import image.FrameGrayscale;
+import image.ImageParser;
+import image_char_matching.SubImgCharMatcher;
+import metrics.Stage;
+import metrics.StageMetrics;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts a sequence of frames, an animated GIF or a directory of numbered images, to an ASCII
+ * animation. Frames are converted one at a time into buffers reused for the whole sequence, and only
+ * the cells whose average changed since the previous frame are matched again, so a mostly static
+ * animation costs little more than decoding its frames.
+ * <p>
+ * Usage: {@code AnimationConverter <animated gif or frame dir> [-res N] [-chars CHARS|all]
+ * [-out FILE.html] [-fps N]}. Without -out the animation is played on the console.
+ */
+public class AnimationConverter {
+    private static final String USAGE = "usage: AnimationConverter <animated gif or frame dir> [-res N] " +
+            "[-chars CHARS|all] [-out FILE.html] [-fps N]";
+    private static final String FONT_NAME = "Courier New";
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_CHARS = "0123456789";
+    private static final int DEFAULT_FPS = 30;
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    private static final Pattern FRAME_NUMBER = Pattern.compile("(\\d+)\\D*$");
+
+    private final int resolution;
+    private final SubImgCharMatcher matcher;
+
+    /**
+     * A sequence of frames of the same size
+     */
+    public interface FrameSource extends Closeable {
+        /**
+         * Decodes the next frame. The returned image may be reused for a later frame.
+         *
+         * @return the next frame, or null after the last one
+         * @throws IOException if the frame cannot be read
+         */
+        BufferedImage next() throws IOException;
+    }
+
+    /**
+     * Creates an animation converter
+     *
+     * @param resolution number of chars per row, a power of 2
+     * @param charset    chars to draw with
+     */
+    public AnimationConverter(int resolution, char[] charset) {
+        if (resolution <= 0 || Integer.bitCount(resolution) != 1) {
+            throw new IllegalArgumentException("resolution must be a power of 2");
+        }
+        if (charset.length == 0) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        this.resolution = resolution;
+        this.matcher = new SubImgCharMatcher(charset);
+    }
+
+    /**
+     * Converts all the frames of a source and writes them to an output
+     *
+     * @param source the frames to convert
+     * @param output the output to write the animation to
+     * @param fps    frame rate to play the animation at
+     * @return the number of converted frames
+     * @throws IOException if a frame cannot be read
+     */
+    public int convert(FrameSource source, AnimationOutput output, int fps) throws IOException {
+        BufferedImage frame = decode(source);
+        if (frame == null) {
+            throw new IOException("no frames to convert");
+        }
+        int frameResolution = Math.min(resolution, ImageParser.getPaddedSize(frame.getWidth()));
+        FrameGrayscale grid = new FrameGrayscale(frame.getWidth(), frame.getHeight(), frameResolution);
+        int rows = grid.getRows();
+        char[][] chars = new char[rows][frameResolution];
+        boolean[] changedCells = new boolean[grid.getCellCount()];
+        boolean[] changedRows = new boolean[rows];
+
+        int frames = 0;
+        output.begin(rows, frameResolution, fps);
+        do {
+            int changed;
+            try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+                changed = grid.update(frame, changedCells);
+                span.addPixels((long) frame.getWidth() * frame.getHeight());
+            }
+            Arrays.fill(changedRows, false);
+            if (changed > 0) {
+                match(grid.getGrayscale(), changedCells, chars, changedRows, changed);
+            }
+            output.frame(chars, changedRows);
+            frames++;
+        } while ((frame = decode(source)) != null);
+        output.end();
+        return frames;
+    }
+
+    /**
+     * matches the changed cells again and marks the rows where a char actually changed
+     */
+    private void match(double[][] grayscale, boolean[] changedCells, char[][] chars, boolean[] changedRows,
+                       int changed) {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.MATCH)) {
+            int columns = grayscale.length;
+            for (int cell = 0; cell < changedCells.length; cell++) {
+                if (!changedCells[cell]) {
+                    continue;
+                }
+                int row = cell / columns;
+                int col = cell % columns;
+                char c = matcher.getCharByImageBrightness(grayscale[row][col]);
+                if (chars[row][col] != c) {
+                    chars[row][col] = c;
+                    changedRows[row] = true;
+                }
+            }
+            span.addPixels(changed);
+        }
+    }
+
+    private static BufferedImage decode(FrameSource source) throws IOException {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.DECODE)) {
+            BufferedImage frame = source.next();
+            if (frame != null) {
+                span.addPixels((long) frame.getWidth() * frame.getHeight());
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Opens the frames of an animation
+     *
+     * @param input a directory of numbered images, played in number order, or a multi-image file such as
+     *              an animated GIF
+     * @return the frames
+     * @throws IOException if the input cannot be opened
+     */
+    public static FrameSource open(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            List<Path> files = BatchConverter.listInputs(input.toString());
+            files.sort(Comparator.comparingLong(AnimationConverter::frameNumber)
+                    .thenComparing(Comparator.naturalOrder()));
+            return new DirectoryFrames(files);
+        }
+        return new MultiImageFrames(input);
+    }
+
+    /**
+     * the last number in a file name, so that frame10.png comes after frame9.png
+     */
+    private static long frameNumber(Path file) {
+        Matcher number = FRAME_NUMBER.matcher(file.getFileName().toString());
+        return number.find() ? Long.parseLong(number.group(1)) : -1;
+    }
+
+    /**
+     * frames stored as separate images. every frame is decoded into the image of the previous one when
+     * the reader allows it.
+     */
+    private static class DirectoryFrames implements FrameSource {
+        private final Iterator<Path> files;
+        private BufferedImage previous;
+
+        DirectoryFrames(List<Path> files) {
+            this.files = files.iterator();
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            if (!files.hasNext()) {
+                return null;
+            }
+            Path file = files.next();
+            try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+                ImageReader reader = in == null ? null : firstReader(in);
+                if (reader == null) {
+                    throw new IOException("unsupported image format: " + file);
+                }
+                try {
+                    reader.setInput(in, true, true);
+                    previous = read(reader, previous);
+                    return previous;
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        private static BufferedImage read(ImageReader reader, BufferedImage destination) throws IOException {
+            if (destination != null && destination.getWidth() == reader.getWidth(0)
+                    && destination.getHeight() == reader.getHeight(0)) {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(destination);
+                try {
+                    return reader.read(0, param);
+                } catch (IIOException | IllegalArgumentException e) {
+                    // the frame has another pixel layout, give it an image of its own
+                }
+            }
+            return reader.read(0);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * frames of a single file holding several images. each image is drawn over a canvas of the full
+     * animation size at its offset, so partial GIF frames and transparent pixels keep what the earlier
+     * frames drew. frames disposed to the background are cleared to white after they are shown.
+     */
+    private static class MultiImageFrames implements FrameSource {
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private BufferedImage canvas;
+        private Graphics2D graphics;
+        private int index;
+        private int[] clearArea; // x, y, width, height of the area to clear before the next frame
+
+        MultiImageFrames(Path file) throws IOException {
+            in = ImageIO.createImageInputStream(file.toFile());
+            reader = in == null ? null : firstReader(in);
+            if (reader == null) {
+                if (in != null) {
+                    in.close();
+                }
+                throw new IOException("unsupported image format: " + file);
+            }
+            reader.setInput(in, true);
+        }
+
+        @Override
+        public BufferedImage next() throws IOException {
+            BufferedImage image;
+            try {
+                image = reader.read(index);
+            } catch (IndexOutOfBoundsException e) {
+                return null;
+            }
+            IIOMetadata metadata = reader.getImageMetadata(index);
+            if (canvas == null) {
+                int[] size = screenSize(image);
+                canvas = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_RGB);
+                graphics = canvas.createGraphics();
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, size[0], size[1]);
+            } else if (clearArea != null) {
+                graphics.fillRect(clearArea[0], clearArea[1], clearArea[2], clearArea[3]);
+                clearArea = null;
+            }
+            int x = 0;
+            int y = 0;
+            Node descriptor = gifNode(metadata, GIF_IMAGE_METADATA, "ImageDescriptor");
+            if (descriptor != null) {
+                x = intAttribute(descriptor, "imageLeftPosition");
+                y = intAttribute(descriptor, "imageTopPosition");
+            }
+            graphics.drawImage(image, x, y, null);
+            Node control = gifNode(metadata, GIF_IMAGE_METADATA, "GraphicControlExtension");
+            if (control != null && "restoreToBackgroundColor".equals(attribute(control, "disposalMethod"))) {
+                clearArea = new int[]{x, y, image.getWidth(), image.getHeight()};
+            }
+            index++;
+            return canvas;
+        }
+
+        /**
+         * the logical screen size of a GIF, or the size of the first image of other formats
+         */
+        private int[] screenSize(BufferedImage first) throws IOException {
+            Node screen = gifNode(reader.getStreamMetadata(), GIF_STREAM_METADATA, "LogicalScreenDescriptor");
+            if (screen != null) {
+                int width = intAttribute(screen, "logicalScreenWidth");
+                int height = intAttribute(screen, "logicalScreenHeight");
+                if (width > 0 && height > 0) {
+                    return new int[]{width, height};
+                }
+            }
+            return new int[]{first.getWidth(), first.getHeight()};
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (graphics != null) {
+                graphics.dispose();
+            }
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    private static ImageReader firstReader(ImageInputStream in) {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * finds a child node of GIF metadata, or null for other formats
+     */
+    private static Node gifNode(IIOMetadata metadata, String format, String name) {
+        if (metadata == null || !format.equals(metadata.getNativeMetadataFormatName())) {
+            return null;
+        }
+        for (Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals(name)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name) {
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    private static int intAttribute(Node node, String name) {
+        String value = attribute(node, name);
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    /**
+     * Entry point of an animation conversion.
+     *
+     * @param args input and options, see the class documentation
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int resolution = DEFAULT_RESOLUTION;
+        String chars = DEFAULT_CHARS;
+        String out = null;
+        int fps = DEFAULT_FPS;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-res":
+                        resolution = Integer.parseInt(args[++i]);
+                        break;
+                    case "-chars":
+                        chars = args[++i];
+                        break;
+                    case "-out":
+                        out = args[++i];
+                        break;
+                    case "-fps":
+                        fps = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(USAGE);
+                }
+            }
+            if (fps <= 0) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            AnimationConverter converter = new AnimationConverter(resolution, BatchConverter.parseChars(chars));
+            AnimationOutput output = out == null ? new AnsiAnimationOutput() : new HtmlAnimationOutput(out, FONT_NAME);
+            long start = System.nanoTime();
+            int frames;
+            try (FrameSource source = open(Paths.get(args[0]))) {
+                frames = converter.convert(source, output, fps);
+            }
+            if (out != null) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf(Locale.ROOT, "Converted %d frames in %.1f s, %.1f frames/s%n",
+                        frames, seconds, frames / Math.max(seconds, 1e-9));
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | IOException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? USAGE : e.getMessage());
+            System.exit(1);
+        }
+    }
+}
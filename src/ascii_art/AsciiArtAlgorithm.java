@@ -1,17 +1,41 @@
 package ascii_art;
 
+import ascii_output.StreamingAsciiOutput;
 import image.Image;
 import image.ImageParser;
 import image_char_matching.SubImgCharMatcher;
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The AsciiArtAlgorithm class converts an image into ASCII art using a specified resolution
  * and set of characters.
+ * Every output cell is independent, so with a parallelism above 1 the rows are split into bands
+ * that are processed on a fork/join pool. The result is identical to the sequential one.
+ * In shape matching mode every sub-image with enough contrast is also binarized to a small bitmap, and
+ * matched to the glyph closest to it in shape among the chars close to it in brightness, so edges and
+ * lines are drawn with the chars that follow them. Flat sub-images are matched by brightness only.
  */
 public class AsciiArtAlgorithm {
+    private static final int SEQUENTIAL = 1;
+    private static final int BANDS_PER_THREAD = 4; // extra bands let idle threads steal work
+    private static final int STREAM_BAND_ROWS = 32; // rows matched before they are written
+    private static final double MIN_SHAPE_CONTRAST = 0.25; // flatter sub-images are matched by brightness
+    // one pool per parallelism level, shared by all the algorithms
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
     //fields
     private final double[][] image; // Stores the pixel values of the image
     private final SubImgCharMatcher matcher; // Used to match image brightness to characters
+    private final int parallelism; // Number of threads working on the image
+    private final long[][][] shapes; // bitmap of every sub-image with contrast, null without shape matching
+    private final int gridSize; // side of the sub-image bitmaps
+    private IncrementalMatch incremental; // Tracks the last runIncremental result, null before the first
 
     /**
      * Constructs an AsciiArtAlgorithm object with the specified image, resolution, and set of characters.
@@ -22,13 +46,103 @@ public class AsciiArtAlgorithm {
      * @param matcher    The set of characters to build the image with.
      */
     public AsciiArtAlgorithm(Image image, int resolution, SubImgCharMatcher matcher) {
+        this(image, resolution, matcher, SEQUENTIAL);
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm object that processes the image with several threads.
+     * The matcher must not be changed while the algorithm runs.
+     *
+     * @param image       The image to convert to ASCII art.
+     * @param resolution  The resolution used for the ASCII art (number of characters per row
+     *                    in the ASCII image).
+     * @param matcher     The set of characters to build the image with.
+     * @param parallelism The number of threads to use, 1 for sequential processing.
+     */
+    public AsciiArtAlgorithm(Image image, int resolution, SubImgCharMatcher matcher, int parallelism) {
+        this(image, resolution, matcher, parallelism, false);
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm object that may match the shapes of the sub-images too.
+     * The matcher must not be changed while the algorithm runs.
+     *
+     * @param image         The image to convert to ASCII art.
+     * @param resolution    The resolution used for the ASCII art (number of characters per row
+     *                      in the ASCII image).
+     * @param matcher       The set of characters to build the image with.
+     * @param parallelism   The number of threads to use, 1 for sequential processing.
+     * @param shapeMatching true to match sub-images with contrast by shape, false to match by brightness.
+     */
+    public AsciiArtAlgorithm(Image image, int resolution, SubImgCharMatcher matcher, int parallelism,
+                             boolean shapeMatching) {
+        if (parallelism < SEQUENTIAL) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.matcher = matcher;
+        this.parallelism = parallelism;
+
         // Pad the image to ensure proper processing
-        image = ImageParser.padImage(image);
+        Image padded = ImageParser.padImage(image);
 
         // Initialize fields
-        this.image = ImageParser.extractSubImageGrayscale(image, resolution);
-        // Stores the resolution used for ASCII art conversion
+        double[][] grayscale = new double[resolution][resolution];
+        int rows = ImageParser.getSubImageRows(padded, resolution);
+        try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+            forEachRowBand(0, rows, (from, to) ->
+                    ImageParser.extractSubImageGrayscale(padded, resolution, grayscale, from, to));
+            span.addPixels((long) rows * (padded.getWidth() / resolution) * padded.getWidth());
+        }
+        this.image = grayscale;
+        this.gridSize = Math.min(SubImgCharMatcher.SHAPE_GRID_SIZE, padded.getWidth() / resolution);
+        this.shapes = shapeMatching ? new long[resolution][resolution][] : null;
+        if (shapeMatching) {
+            extractShapes(padded, resolution, rows);
+        }
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm object that matches shapes over grayscale values computed in
+     * advance, for example together with the colors of the sub-images, so the image is not averaged twice.
+     * The matcher must not be changed while the algorithm runs.
+     *
+     * @param grayscale   The brightness of every sub-image, one row per row of the ASCII art.
+     * @param image       The image the grayscale values were computed from, binarized for the shapes.
+     * @param matcher     The set of characters to build the image with.
+     * @param parallelism The number of threads to use, 1 for sequential processing.
+     */
+    public AsciiArtAlgorithm(double[][] grayscale, Image image, SubImgCharMatcher matcher, int parallelism) {
+        if (parallelism < SEQUENTIAL) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.image = grayscale;
+        this.matcher = matcher;
+        this.parallelism = parallelism;
+        Image padded = ImageParser.padImage(image);
+        int resolution = grayscale[0].length;
+        this.gridSize = Math.min(SubImgCharMatcher.SHAPE_GRID_SIZE, padded.getWidth() / resolution);
+        this.shapes = new long[grayscale.length][resolution][];
+        extractShapes(padded, resolution, ImageParser.getSubImageRows(padded, resolution));
+    }
+
+    /**
+     * Constructs an AsciiArtAlgorithm object over grayscale values computed in advance, for example by
+     * a GrayscalePyramid.
+     *
+     * @param grayscale   The average grayscale of every sub-image, as ImageParser.extractSubImageGrayscale
+     *                    returns it. The array is used as is and not copied.
+     * @param matcher     The set of characters to build the image with.
+     * @param parallelism The number of threads to use, 1 for sequential processing.
+     */
+    public AsciiArtAlgorithm(double[][] grayscale, SubImgCharMatcher matcher, int parallelism) {
+        if (parallelism < SEQUENTIAL) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.image = grayscale;
         this.matcher = matcher;
+        this.parallelism = parallelism;
+        this.shapes = null;
+        this.gridSize = 0;
     }
 
     /**
@@ -37,13 +151,166 @@ public class AsciiArtAlgorithm {
      * @return A 2D char array representing the ASCII art version of the image.
      */
     public char[][] run() {
-        char[][] ascii = new char[image.length][image[0].length];
-        for (int row = 0; row < ascii.length; row++) {
-            for (int col = 0; col < ascii[row].length; col++) {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.MATCH)) {
+            char[][] ascii = new char[image.length][image[0].length];
+            forEachRowBand(0, ascii.length, (from, to) -> matchRows(ascii, from, from, to));
+            span.addPixels((long) ascii.length * ascii[0].length);
+            return ascii;
+        }
+    }
+
+    /**
+     * Runs the ASCII art conversion algorithm, reusing the result of the previous call.
+     * The first call matches every cell. Later calls rematch only the cells whose char is affected by
+     * the charset changes made since, in time proportional to what changed.
+     *
+     * @return A 2D char array representing the ASCII art version of the image. The same array is
+     * returned and updated by every call, so it must not be changed by the caller. With shape matching
+     * every call is a full run and returns a new array.
+     */
+    public char[][] runIncremental() {
+        if (shapes != null) {
+            return run(); // shape matches do not follow brightness, so edits cannot be tracked by it
+        }
+        if (incremental == null) {
+            // the full run is measured by itself
+            incremental = new IncrementalMatch(image, matcher, run());
+            return incremental.update();
+        }
+        try (StageMetrics.Span span = StageMetrics.start(Stage.MATCH)) {
+            span.addPixels((long) image.length * image[0].length);
+            return incremental.update();
+        }
+    }
+
+    /**
+     * Runs the ASCII art conversion algorithm like runIncremental, and writes the result to an output.
+     * The first call streams the rows as soon as each band is matched, like run(output), while keeping
+     * them for the later calls, which rematch only the cells affected by charset changes.
+     *
+     * @param output The output to write the rows of the ASCII art to.
+     */
+    public void runIncremental(StreamingAsciiOutput output) {
+        if (shapes != null) {
+            run(output);
+            return;
+        }
+        if (incremental == null) {
+            char[][] ascii = new char[image.length][image[0].length];
+            stream(output, ascii);
+            incremental = new IncrementalMatch(image, matcher, ascii);
+            return;
+        }
+        output.out(runIncremental());
+    }
+
+    /**
+     * Runs the ASCII art conversion algorithm and streams the rows to an output as soon as each band
+     * of rows is matched, so only one band of chars is held in memory.
+     *
+     * @param output The output to write the rows of the ASCII art to.
+     */
+    public void run(StreamingAsciiOutput output) {
+        stream(output, null);
+    }
+
+    /**
+     * Matches the image band by band and writes every band to the output once it is matched.
+     *
+     * @param output The output to write the rows of the ASCII art to.
+     * @param frame  Array holding every row of the result, or null to reuse the rows of a single band.
+     */
+    private void stream(StreamingAsciiOutput output, char[][] frame) {
+        int bandRows = Math.max(STREAM_BAND_ROWS, parallelism * BANDS_PER_THREAD);
+        char[][] band = frame != null ? frame : new char[Math.min(bandRows, image.length)][image[0].length];
+        // only the matching is measured here, the output measures its own writes
+        try (StageMetrics.Accumulator span = StageMetrics.accumulate(Stage.MATCH)) {
+            output.begin(image.length, image[0].length);
+            for (int start = 0; start < image.length; start += bandRows) {
+                int bandStart = start;
+                int bandEnd = Math.min(start + bandRows, image.length);
+                int offset = frame != null ? 0 : bandStart; // first row of the band in the target array
+                span.resume();
+                forEachRowBand(bandStart, bandEnd, (from, to) -> matchRows(band, from - offset, from, to));
+                span.pause();
+                for (int row = bandStart; row < bandEnd; row++) {
+                    output.row(band[row - offset]);
+                }
+            }
+            output.end();
+            span.addPixels((long) image.length * image[0].length);
+        }
+    }
+
+    /**
+     * Matches the image rows [from, to) into the target rows starting at targetRow.
+     */
+    private void matchRows(char[][] target, int targetRow, int from, int to) {
+        for (int row = from; row < to; row++, targetRow++) {
+            for (int col = 0; col < image[row].length; col++) {
+                if (shapes != null && shapes[row][col] != null) {
+                    target[targetRow][col] =
+                            matcher.getCharByShape(image[row][col], shapes[row][col], gridSize);
+                    continue;
+                }
                 // Get the character representation of the image brightness at the current pixel
-                ascii[row][col] = matcher.getCharByImageBrightness(image[row][col]);
+                target[targetRow][col] = matcher.getCharByImageBrightness(image[row][col]);
+            }
+        }
+    }
+
+    /**
+     * Calls the action on bands of rows covering [from, to), in parallel when the algorithm is parallel.
+     */
+    private void extractShapes(Image padded, int resolution, int rows) {
+        forEachRowBand(0, rows, (from, to) -> ImageParser.extractSubImageBitmaps(padded, resolution,
+                gridSize, MIN_SHAPE_CONTRAST, shapes, from, to));
+    }
+
+    private void forEachRowBand(int from, int to, RowBandAction action) {
+        if (parallelism == SEQUENTIAL) {
+            action.apply(from, to);
+            return;
+        }
+        int bandSize = Math.max(1, (to - from) / (parallelism * BANDS_PER_THREAD));
+        ForkJoinPool pool = POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+        pool.invoke(new RowBandTask(action, from, to, bandSize));
+    }
+
+    /**
+     * Work on the rows [from, to) of the image.
+     */
+    @FunctionalInterface
+    private interface RowBandAction {
+        void apply(int from, int to);
+    }
+
+    /**
+     * Splits a range of rows in half until it is no larger than a single band.
+     */
+    private static class RowBandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowBandAction action;
+        private final int from;
+        private final int to;
+        private final int bandSize;
+
+        RowBandTask(RowBandAction action, int from, int to, int bandSize) {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+            this.bandSize = bandSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= bandSize) {
+                action.apply(from, to);
+                return;
             }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RowBandTask(action, from, middle, bandSize),
+                    new RowBandTask(action, middle, to, bandSize));
         }
-        return ascii;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,437 @@
+package ascii_art;
+
+import ascii_output.ColorAsciiOutput;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import image.Image;
+import image.ImageParser;
+import image_char_matching.SubImgCharMatcher;
+import metrics.LatencyHistogram;
+import metrics.StageMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A long running local HTTP service that converts images to ASCII art, so that the JVM starts and the
+ * glyphs are rendered once instead of once per image. Exchanges run on virtual threads when the JVM has
+ * them, on a cached thread pool otherwise, while the conversions run on a fixed pool of one thread per
+ * core, so that the CPU work and the memory of the decoded images are bounded however many requests
+ * arrive. Images of more than Shell.MAX_DECODED_PIXELS pixels are rejected before they are decoded.
+ * <p>
+ * {@code POST /render?res=128&chars=all&format=html} with the bytes of an image file as the body returns
+ * the ASCII art as text or HTML. The optional parameters are res, a power of 2, chars, a list of chars
+ * or all, format, txt or html, shape and color, true or false, with the defaults of BatchConverter.
+ * Identical requests that arrive while the first of them is converted, with the same image bytes and
+ * parameters, wait for its result instead of converting the image again. Matchers are shared by all the
+ * requests that draw with the same charset, as they are never changed once created. A new matcher is
+ * created outside of any lock, so requests with other charsets do not wait for it.
+ * <p>
+ * {@code GET /metrics} returns the latency of every endpoint together with the stage metrics.
+ * <p>
+ * Usage: {@code AsciiArtServer [-port N]}
+ */
+public class AsciiArtServer {
+    /**
+     * path of the conversion endpoint
+     */
+    public static final String RENDER_PATH = "/render";
+    /**
+     * path of the metrics endpoint
+     */
+    public static final String METRICS_PATH = "/metrics";
+    private static final String USAGE = "usage: AsciiArtServer [-port N]";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_CHARS = "0123456789";
+    private static final String HTML_FORMAT = "html";
+    private static final String TEXT_FORMAT = "txt";
+    private static final String FONT_NAME = "Courier New";
+    private static final int MAX_BODY_BYTES = 64 << 20;
+    private static final int MAX_MATCHERS = 64; // charsets whose matchers are kept
+    private static final int OK = 200;
+    private static final int BAD_REQUEST = 400;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int INTERNAL_ERROR = 500;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ExecutorService renderExecutor;
+    private final Map<RenderKey, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, EndpointStats> endpoints = new LinkedHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rendered = new LongAdder();
+    // matchers by charset, completed once created. the least recently used one is dropped once there are
+    // too many, the lock is only held to look them up
+    private final Map<String, CompletableFuture<SubImgCharMatcher>> matchers =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<SubImgCharMatcher>> eldest) {
+                    return size() > MAX_MATCHERS;
+                }
+            };
+    private final LongAdder matcherHits = new LongAdder();
+    private final LongAdder matcherMisses = new LongAdder();
+
+    /**
+     * Creates a server, which accepts requests once started
+     *
+     * @param address address to listen on, port 0 for any free port
+     * @throws IOException if the address cannot be bound
+     */
+    public AsciiArtServer(InetSocketAddress address) throws IOException {
+        this(address, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Creates a server that converts the images on the given executor, which accepts requests once started
+     *
+     * @param address        address to listen on, port 0 for any free port
+     * @param renderExecutor executor to convert the images on, its threads bound the concurrent
+     *                       conversions. it is shut down when the server stops
+     * @throws IOException if the address cannot be bound
+     */
+    public AsciiArtServer(InetSocketAddress address, ExecutorService renderExecutor) throws IOException {
+        this.renderExecutor = renderExecutor;
+        try {
+            server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            renderExecutor.shutdown();
+            throw e;
+        }
+        executor = ConversionPipeline.newIoExecutor();
+        server.setExecutor(executor);
+        endpoints.put(RENDER_PATH, new EndpointStats());
+        endpoints.put(METRICS_PATH, new EndpointStats());
+        server.createContext(RENDER_PATH, exchange -> handle(RENDER_PATH, exchange, this::render));
+        server.createContext(METRICS_PATH, exchange -> handle(METRICS_PATH, exchange, this::metrics));
+        StageMetrics.registerCache("server matchers", matcherHits::sum, matcherMisses::sum);
+        StageMetrics.registerCache("server coalescing", coalesced::sum, rendered::sum);
+    }
+
+    /**
+     * Starts accepting requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waiting for the current exchanges for up to a second
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        renderExecutor.shutdown();
+    }
+
+    /**
+     * Gets the port the server listens on
+     *
+     * @return the bound port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the number of requests that were answered with the result of an identical concurrent request
+     *
+     * @return coalesced requests
+     */
+    public long getCoalescedRequests() {
+        return coalesced.sum();
+    }
+
+    /**
+     * A response to an exchange
+     */
+    private record Response(int status, String contentType, byte[] body) {
+        static Response text(int status, String text) {
+            return new Response(status, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Handles the exchanges of one endpoint
+     */
+    @FunctionalInterface
+    private interface Endpoint {
+        Response handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * answers an exchange and records its latency, until the whole response is sent
+     */
+    private void handle(String path, HttpExchange exchange, Endpoint endpoint) throws IOException {
+        long start = System.nanoTime();
+        EndpointStats stats = endpoints.get(path);
+        Response response;
+        try {
+            response = endpoint.handle(exchange);
+        } catch (IllegalArgumentException e) {
+            response = Response.text(BAD_REQUEST, String.valueOf(e.getMessage()));
+        } catch (IOException | RuntimeException e) {
+            response = Response.text(INTERNAL_ERROR, "Failed to convert: " + e.getMessage());
+        }
+        try {
+            exchange.getResponseHeaders().set("Content-Type", response.contentType());
+            exchange.sendResponseHeaders(response.status(), response.body().length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response.body());
+            }
+        } finally {
+            exchange.close();
+            if (response.status() != OK) {
+                stats.errors.increment();
+            }
+            stats.latency.record(System.nanoTime() - start);
+        }
+    }
+
+    private Response render(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            return Response.text(METHOD_NOT_ALLOWED, "use POST with an image as the body");
+        }
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            return Response.text(PAYLOAD_TOO_LARGE, "images are limited to " + MAX_BODY_BYTES + " bytes");
+        }
+        RenderKey key = parseKey(exchange.getRequestURI().getRawQuery(), body);
+        // the header tells the size of the image, a small file may decode to more pixels than fit in memory
+        long pixels;
+        try {
+            pixels = Image.getPixelCount(body);
+        } catch (IOException e) {
+            return Response.text(BAD_REQUEST, "Cannot decode the image: " + e.getMessage());
+        }
+        if (pixels > Shell.MAX_DECODED_PIXELS) {
+            return Response.text(PAYLOAD_TOO_LARGE, "images are limited to " + Shell.MAX_DECODED_PIXELS
+                    + " pixels");
+        }
+
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = inFlight.putIfAbsent(key, result);
+        if (running != null) {
+            coalesced.increment();
+            result = running;
+        } else {
+            rendered.increment();
+            submitRender(key, body, result);
+        }
+
+        byte[] ascii;
+        try {
+            ascii = result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                return Response.text(BAD_REQUEST, "Cannot decode the image: " + e.getCause().getMessage());
+            }
+            throw e;
+        }
+        String contentType = key.format().equals(HTML_FORMAT) ? "text/html" : "text/plain";
+        return new Response(OK, contentType + "; charset=utf-8", ascii);
+    }
+
+    /**
+     * converts an image on the render executor, completing the result and removing it from the requests
+     * in flight once done
+     */
+    private void submitRender(RenderKey key, byte[] body, CompletableFuture<byte[]> result) {
+        try {
+            renderExecutor.execute(() -> {
+                try {
+                    result.complete(render(key, body));
+                } catch (Throwable e) {
+                    // errors too, the requests waiting for the result must not hang
+                    result.completeExceptionally(e);
+                } finally {
+                    inFlight.remove(key, result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            inFlight.remove(key, result);
+        }
+    }
+
+    /**
+     * converts an image and writes it in the requested format
+     */
+    private byte[] render(RenderKey key, byte[] body) throws IOException {
+        Image image = ImageParser.padImage(new Image(body));
+        int resolution = Math.min(key.resolution(), image.getWidth());
+        BatchConverter.Converted converted = BatchConverter.convert(image, resolution, getMatcher(key.chars()),
+                key.shape(), key.color());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColorAsciiOutput output = key.format().equals(HTML_FORMAT)
+                ? new HtmlAsciiOutput(Channels.newChannel(bytes), FONT_NAME, false)
+                : new ConsoleAsciiOutput(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        BatchConverter.write(output, converted);
+        return bytes.toByteArray();
+    }
+
+    private Response metrics(HttpExchange exchange) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-9s %8s %8s %10s %9s %9s%n", "endpoint", "count", "errors",
+                "total ms", "p50 ms", "p99 ms"));
+        endpoints.forEach((path, stats) -> report.append(String.format(Locale.ROOT,
+                "%-9s %8d %8d %10.1f %9.3f %9.3f%n", path, stats.latency.getCount(), stats.errors.sum(),
+                stats.latency.getTotalMillis(), stats.latency.percentile(0.5), stats.latency.percentile(0.99))));
+        report.append(StageMetrics.get().getReport());
+        return Response.text(OK, report.toString());
+    }
+
+    /**
+     * gets the shared matcher of a charset, creating it on the first request that draws with it. requests
+     * for the same new charset wait for that one to create it
+     */
+    private SubImgCharMatcher getMatcher(String chars) {
+        CompletableFuture<SubImgCharMatcher> matcher;
+        boolean created;
+        synchronized (matchers) {
+            matcher = matchers.get(chars);
+            created = matcher == null;
+            if (created) {
+                matcher = new CompletableFuture<>();
+                matchers.put(chars, matcher);
+            }
+        }
+        if (!created) {
+            matcherHits.increment();
+            return matcher.join();
+        }
+        matcherMisses.increment();
+        try {
+            // chars outside of the glyph atlas are rendered here, without holding the lock
+            matcher.complete(new SubImgCharMatcher(chars.toCharArray()));
+        } catch (Throwable e) {
+            // errors too, the requests waiting for the matcher must not hang
+            synchronized (matchers) {
+                matchers.remove(chars, matcher);
+            }
+            matcher.completeExceptionally(e);
+            throw e;
+        }
+        return matcher.join();
+    }
+
+    /**
+     * parses the query of a conversion request
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    private static RenderKey parseKey(String query, byte[] body) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int split = parameter.indexOf('=');
+                String name = split < 0 ? parameter : parameter.substring(0, split);
+                String value = split < 0 ? "" : parameter.substring(split + 1);
+                parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        int resolution;
+        try {
+            resolution = Integer.parseInt(parameters.getOrDefault("res", String.valueOf(DEFAULT_RESOLUTION)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("res must be a number");
+        }
+        if (resolution <= 0 || Integer.bitCount(resolution) != 1) {
+            throw new IllegalArgumentException("res must be a power of 2");
+        }
+        // the charset is kept sorted and without repeats, so that equal charsets share a matcher
+        TreeSet<Character> charset = new TreeSet<>();
+        for (char c : BatchConverter.parseChars(parameters.getOrDefault("chars", DEFAULT_CHARS))) {
+            charset.add(c);
+        }
+        StringBuilder chars = new StringBuilder();
+        for (char c : charset) {
+            chars.append(c);
+        }
+        if (chars.length() == 0) {
+            throw new IllegalArgumentException("chars must not be empty");
+        }
+        String format = parameters.getOrDefault("format", TEXT_FORMAT);
+        if (!format.equals(HTML_FORMAT) && !format.equals(TEXT_FORMAT)) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        return new RenderKey(hash(body), resolution, chars.toString(), format,
+                Boolean.parseBoolean(parameters.get("shape")), Boolean.parseBoolean(parameters.get("color")));
+    }
+
+    /**
+     * the SHA-256 of the bytes of an image, as hex
+     */
+    private static String hash(byte[] body) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * what makes two conversion requests identical: the content of the image and the parameters
+     */
+    private record RenderKey(String hash, int resolution, String chars, String format, boolean shape,
+                             boolean color) {
+    }
+
+    /**
+     * the measurements of one endpoint
+     */
+    private static class EndpointStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Runs the server on the loopback address until the process is stopped
+     *
+     * @param args options, see the class documentation
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].equals("-port")) {
+                    throw new IllegalArgumentException(USAGE);
+                }
+                port = Integer.parseInt(args[++i]);
+            }
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            AsciiArtServer server = new AsciiArtServer(address);
+            server.start();
+            System.out.println("Listening on http://localhost:" + server.getPort() + RENDER_PATH);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | IOException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? USAGE : e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package ascii_art;
+
+import ascii_output.ColorAsciiOutput;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import image.DecodedImage;
+import image.Image;
+import image.ImageParser;
+import image_char_matching.SubImgCharMatcher;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless entry point that converts every image in a directory, or every file matching a glob, to
+ * ASCII art. Images flow through a ConversionPipeline: decoding and writing overlap on I/O threads,
+ * while -threads platform threads do the matching.
+ * Finished inputs are appended to a progress file in the output directory, and a resumed run skips
+ * them. Every output is named after its whole input file name, a.jpg is written to a.jpg.html.
+ * Throughput is reported in images per second.
+ * <p>
+ * Usage: {@code BatchConverter <input dir or glob> <output dir> [-res N] [-chars CHARS|all]
+ * [-format html|txt] [-threads N] [-io N] [-shape] [-color] [-resume]}
+ * <p>
+ * -shape matches the glyphs to the shapes of the sub-images as well as their brightness, see
+ * AsciiArtAlgorithm. -color draws every char in the mean color of its sub-image, as HTML spans or as
+ * ANSI escapes in text files.
+ */
+public class BatchConverter {
+    private static final String USAGE = "usage: BatchConverter <input dir or glob> <output dir> [-res N] " +
+            "[-chars CHARS|all] [-format html|txt] [-threads N] [-io N] [-shape] [-color] [-resume]";
+    private static final String PROGRESS_FILE = "batch.done";
+    private static final String HTML_FORMAT = "html";
+    private static final String TEXT_FORMAT = "txt";
+    private static final String ALL_CHARS = "all";
+    private static final String FONT_NAME = "Courier New";
+    private static final char FIRST_PRINTABLE_CHAR = 32;
+    private static final char LAST_PRINTABLE_CHAR = 126;
+    private static final int DEFAULT_RESOLUTION = 128;
+    private static final String DEFAULT_CHARS = "0123456789";
+    private static final int DEFAULT_IO_CONCURRENCY = 16;
+    private static final int REPORT_INTERVAL = 1000;
+    private static final String IMAGE_EXTENSIONS = "*.{jpg,jpeg,png,gif,bmp,JPG,JPEG,PNG,GIF,BMP}";
+
+    private final Path outputDir;
+    private final int resolution;
+    private final String format;
+    private final int threads;
+    private final int ioConcurrency;
+    private final SubImgCharMatcher matcher;
+    private final boolean shapeMatching;
+    private final boolean color;
+    private final AtomicInteger converted = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private Writer progress;
+
+    /**
+     * Creates a batch converter
+     *
+     * @param outputDir  directory to write the converted images to
+     * @param resolution number of chars per row, a power of 2
+     * @param charset    chars to draw with
+     * @param format     html or txt
+     * @param threads    number of threads matching images
+     * @param ioConcurrency number of files read or written at once
+     */
+    public BatchConverter(Path outputDir, int resolution, char[] charset, String format, int threads,
+                          int ioConcurrency) {
+        this(outputDir, resolution, charset, format, threads, ioConcurrency, false);
+    }
+
+    /**
+     * Creates a batch converter
+     *
+     * @param outputDir  directory to write the converted images to
+     * @param resolution number of chars per row, a power of 2
+     * @param charset    chars to draw with
+     * @param format     html or txt
+     * @param threads    number of threads matching images
+     * @param ioConcurrency number of files read or written at once
+     * @param shapeMatching true to match glyph shapes too, not only brightness
+     */
+    public BatchConverter(Path outputDir, int resolution, char[] charset, String format, int threads,
+                          int ioConcurrency, boolean shapeMatching) {
+        this(outputDir, resolution, charset, format, threads, ioConcurrency, shapeMatching, false);
+    }
+
+    /**
+     * Creates a batch converter
+     *
+     * @param outputDir  directory to write the converted images to
+     * @param resolution number of chars per row, a power of 2
+     * @param charset    chars to draw with
+     * @param format     html or txt
+     * @param threads    number of threads matching images
+     * @param ioConcurrency number of files read or written at once
+     * @param shapeMatching true to match glyph shapes too, not only brightness
+     * @param color true to draw every char in the color of its sub-image
+     */
+    public BatchConverter(Path outputDir, int resolution, char[] charset, String format, int threads,
+                          int ioConcurrency, boolean shapeMatching, boolean color) {
+        if (resolution <= 0 || Integer.bitCount(resolution) != 1) {
+            throw new IllegalArgumentException("resolution must be a power of 2");
+        }
+        if (!format.equals(HTML_FORMAT) && !format.equals(TEXT_FORMAT)) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        if (charset.length == 0 || threads <= 0 || ioConcurrency <= 0) {
+            throw new IllegalArgumentException(USAGE);
+        }
+        this.outputDir = outputDir;
+        this.resolution = resolution;
+        this.format = format;
+        this.threads = threads;
+        this.ioConcurrency = ioConcurrency;
+        this.matcher = new SubImgCharMatcher(charset);
+        this.shapeMatching = shapeMatching;
+        this.color = color;
+    }
+
+    /**
+     * Converts all the inputs, waiting for every worker to finish
+     *
+     * @param inputs images to convert
+     * @param resume true to skip the inputs recorded as done by an earlier run
+     * @throws IOException if the output directory or the progress file cannot be written
+     */
+    public void convert(List<Path> inputs, boolean resume) throws IOException {
+        Files.createDirectories(outputDir);
+        Path progressPath = outputDir.resolve(PROGRESS_FILE);
+        Set<String> done = new HashSet<>();
+        if (resume && Files.exists(progressPath)) {
+            done.addAll(Files.readAllLines(progressPath, StandardCharsets.UTF_8));
+        }
+        StandardOpenOption mode = resume ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        progress = Files.newBufferedWriter(progressPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, mode);
+
+        List<Path> pending = new ArrayList<>();
+        for (Path input : inputs) {
+            if (!done.contains(input.toString())) {
+                pending.add(input);
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            ConversionPipeline<Converted> pipeline = new ConversionPipeline<>(threads, ioConcurrency);
+            pipeline.run(pending, this::decode, this::match, this::write,
+                    new ConversionPipeline.Listener() {
+                        @Override
+                        public void done(Path input) {
+                            markDone(input, start);
+                        }
+
+                        @Override
+                        public void failed(Path input, Exception e) {
+                            failed.incrementAndGet();
+                            System.err.println("Failed to convert " + input + ": " + e.getMessage());
+                        }
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            progress.close();
+        }
+        report(start);
+        int skipped = inputs.size() - pending.size();
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " images converted by an earlier run.");
+        }
+    }
+
+    private DecodedImage decode(Path input) throws IOException {
+        return DecodedImage.read(input.toString());
+    }
+
+    private Converted match(Path input, DecodedImage decoded) {
+        // the luminance table is built here, on a matching thread, and not on the I/O threads
+        Image image = ImageParser.padImage(new Image(decoded));
+        return convert(image, Math.min(resolution, image.getWidth()), matcher, shapeMatching, color);
+    }
+
+    /**
+     * Converts a padded image to ASCII art
+     *
+     * @param image         the padded image
+     * @param resolution    number of chars per row, a power of 2 up to the image width
+     * @param matcher       chars to draw with, not changed while converting
+     * @param shapeMatching true to match glyph shapes too, not only brightness
+     * @param color         true to compute the color of every char as well
+     * @return the chars, and their colors or null colors
+     */
+    static Converted convert(Image image, int resolution, SubImgCharMatcher matcher, boolean shapeMatching,
+                             boolean color) {
+        if (!color) {
+            return new Converted(new AsciiArtAlgorithm(image, resolution, matcher, 1, shapeMatching).run(), null);
+        }
+        // the colors and the grayscale values come from the same pass over the pixels
+        double[][] grayscale = new double[resolution][resolution];
+        int[][] colors = new int[resolution][resolution];
+        ImageParser.extractSubImageColors(image, resolution, grayscale, colors);
+        AsciiArtAlgorithm algorithm = shapeMatching
+                ? new AsciiArtAlgorithm(grayscale, image, matcher, 1)
+                : new AsciiArtAlgorithm(grayscale, matcher, 1);
+        return new Converted(algorithm.run(), colors);
+    }
+
+    private void write(Path input, Converted converted) throws IOException {
+        // the source extension stays in the name, so a.jpg and a.png do not overwrite each other
+        Path output = outputDir.resolve(input.getFileName() + "." + format);
+        if (format.equals(HTML_FORMAT)) {
+            write(new HtmlAsciiOutput(output.toString(), FONT_NAME), converted);
+        } else {
+            try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                write(new ConsoleAsciiOutput(writer), converted);
+            }
+        }
+    }
+
+    /**
+     * Writes ASCII art to an output, in color when it has colors
+     *
+     * @param output    the output
+     * @param converted the ASCII art
+     */
+    static void write(ColorAsciiOutput output, Converted converted) {
+        if (converted.colors() == null) {
+            output.out(converted.ascii());
+        } else {
+            output.out(converted.ascii(), converted.colors());
+        }
+    }
+
+    private void markDone(Path input, long start) {
+        synchronized (progress) {
+            try {
+                progress.write(input.toString());
+                progress.write(System.lineSeparator());
+                progress.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to record progress of " + input + ": " + e.getMessage());
+            }
+        }
+        if (converted.incrementAndGet() % REPORT_INTERVAL == 0) {
+            report(start);
+        }
+    }
+
+    private void report(long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int count = converted.get();
+        System.out.printf(Locale.ROOT, "Converted %d images (%d failed) in %.1f s, %.1f images/s%n",
+                count, failed.get(), seconds, count / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Lists the images to convert
+     *
+     * @param input a directory, whose images are listed, or a glob such as thumbs/*.jpg
+     * @return the matching files in name order
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> listInputs(String input) throws IOException {
+        Path path = Paths.get(input);
+        Path dir;
+        String glob;
+        if (Files.isDirectory(path)) {
+            dir = path;
+            glob = IMAGE_EXTENSIONS;
+        } else {
+            dir = path.getParent() == null ? Paths.get(".") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+        PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + glob);
+        List<Path> inputs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) {
+                    inputs.add(file);
+                }
+            }
+        }
+        inputs.sort(null);
+        return inputs;
+    }
+
+    /**
+     * Parses the -chars option
+     *
+     * @param chars the chars to draw with, or all for every printable ASCII char
+     * @return the charset
+     */
+    static char[] parseChars(String chars) {
+        if (!chars.equals(ALL_CHARS)) {
+            return chars.toCharArray();
+        }
+        char[] all = new char[LAST_PRINTABLE_CHAR - FIRST_PRINTABLE_CHAR + 1];
+        for (char c = FIRST_PRINTABLE_CHAR; c <= LAST_PRINTABLE_CHAR; c++) {
+            all[c - FIRST_PRINTABLE_CHAR] = c;
+        }
+        return all;
+    }
+
+    /**
+     * Entry point of a batch run.
+     *
+     * @param args input, output directory and options, see the class documentation
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int resolution = DEFAULT_RESOLUTION;
+        String chars = DEFAULT_CHARS;
+        String format = HTML_FORMAT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioConcurrency = DEFAULT_IO_CONCURRENCY;
+        boolean shapeMatching = false;
+        boolean color = false;
+        boolean resume = false;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-res":
+                        resolution = Integer.parseInt(args[++i]);
+                        break;
+                    case "-chars":
+                        chars = args[++i];
+                        break;
+                    case "-format":
+                        format = args[++i];
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-io":
+                        ioConcurrency = Integer.parseInt(args[++i]);
+                        break;
+                    case "-shape":
+                        shapeMatching = true;
+                        break;
+                    case "-color":
+                        color = true;
+                        break;
+                    case "-resume":
+                        resume = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException(USAGE);
+                }
+            }
+            BatchConverter converter = new BatchConverter(Paths.get(args[1]), resolution, parseChars(chars),
+                    format, threads, ioConcurrency, shapeMatching, color);
+            converter.convert(listInputs(args[0]), resume);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | IOException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? USAGE : e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * the ASCII art of an image, with the color of every char or null colors
+     */
+    record Converted(char[][] ascii, int[][] colors) {
+    }
+}
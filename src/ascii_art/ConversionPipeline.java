@@ -0,0 +1,244 @@
+package ascii_art;
+
+import image.DecodedImage;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A three stage pipeline that converts many images: decoding, matching and writing.
+ * Decoding and writing wait on the disk and run on virtual threads when the JVM has them, or on a
+ * cached thread pool otherwise. Decoding only reads the pixels, and everything that works on them,
+ * from building the luminance table on, is matching, which is CPU bound and runs on a fixed pool of
+ * platform threads.
+ * The stages are connected by bounded queues, so a fast stage blocks once it is far enough ahead
+ * and disk latency overlaps with the computation. A failure of a single input is reported to the
+ * listener, while an error that kills a matching or writing thread stops the whole run, so that the
+ * stages feeding it do not wait for room in its queue forever.
+ *
+ * @param <T> the result of matching an image, handed to the writing stage
+ */
+class ConversionPipeline<T> {
+    private static final int QUEUED_ITEMS_PER_THREAD = 2;
+    private static final long FAILURE_CHECK_MILLIS = 100; // how often a blocked stage checks for failures
+
+    /**
+     * Reads the pixels of an input.
+     */
+    @FunctionalInterface
+    interface DecodeStage {
+        DecodedImage decode(Path input) throws IOException;
+    }
+
+    /**
+     * Converts decoded pixels into ASCII art.
+     */
+    @FunctionalInterface
+    interface MatchStage<T> {
+        T match(Path input, DecodedImage image);
+    }
+
+    /**
+     * Writes the ASCII art of an input.
+     */
+    @FunctionalInterface
+    interface WriteStage<T> {
+        void write(Path input, T ascii) throws IOException;
+    }
+
+    /**
+     * Receives the result of each input.
+     */
+    interface Listener {
+        void done(Path input);
+
+        void failed(Path input, Exception e);
+    }
+
+    private final int cpuThreads;
+    private final int ioConcurrency;
+    private final Item<T> end = new Item<>(null, null, null); // marks the end of a stage's input
+
+    /**
+     * Creates a pipeline
+     *
+     * @param cpuThreads    number of threads that match images
+     * @param ioConcurrency maximal number of files decoded at once, and of writer threads
+     */
+    ConversionPipeline(int cpuThreads, int ioConcurrency) {
+        this.cpuThreads = cpuThreads;
+        this.ioConcurrency = ioConcurrency;
+    }
+
+    /**
+     * Runs all the inputs through the stages, returning once every input was written or failed.
+     *
+     * @param inputs   files to convert
+     * @param decoder  decoding stage
+     * @param matcher  matching stage
+     * @param writer   writing stage
+     * @param listener notified once per input, from any thread
+     * @throws InterruptedException if the calling thread is interrupted
+     * @throws IllegalStateException if a stage thread died, with its error as the cause
+     */
+    void run(List<Path> inputs, DecodeStage decoder, MatchStage<T> matcher, WriteStage<T> writer,
+             Listener listener) throws InterruptedException {
+        int capacity = cpuThreads * QUEUED_ITEMS_PER_THREAD;
+        BlockingQueue<Item<T>> decoded = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Item<T>> matched = new ArrayBlockingQueue<>(capacity);
+        ExecutorService io = newIoExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads);
+        // the error that killed a matching or writing thread, which stops the run
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < ioConcurrency; i++) {
+                writers.add(io.submit(() -> writeLoop(matched, writer, listener, failure)));
+            }
+            List<Future<?>> matchers = new ArrayList<>();
+            for (int i = 0; i < cpuThreads; i++) {
+                matchers.add(cpu.submit(() -> matchLoop(decoded, matched, matcher, listener, failure)));
+            }
+
+            // the permits bound the decoded images that wait for room in the queue
+            Semaphore decodePermits = new Semaphore(ioConcurrency);
+            List<Future<?>> decodes = new ArrayList<>();
+            for (Path input : inputs) {
+                decodePermits.acquire();
+                if (failure.get() != null) {
+                    break;
+                }
+                decodes.add(io.submit(() -> decode(input, decoder, decoded, listener, decodePermits, failure)));
+            }
+            awaitAll(decodes);
+            endStage(decoded, cpuThreads, failure);
+            awaitAll(matchers);
+            endStage(matched, ioConcurrency, failure);
+            awaitAll(writers);
+        } finally {
+            cpu.shutdownNow();
+            io.shutdownNow();
+        }
+    }
+
+    private void decode(Path input, DecodeStage decoder, BlockingQueue<Item<T>> decoded, Listener listener,
+                        Semaphore permits, AtomicReference<Throwable> failure) {
+        try {
+            put(decoded, new Item<>(input, decoder.decode(input), null), failure);
+        } catch (IOException | RuntimeException e) {
+            listener.failed(input, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void matchLoop(BlockingQueue<Item<T>> decoded, BlockingQueue<Item<T>> matched, MatchStage<T> matcher,
+                           Listener listener, AtomicReference<Throwable> failure) {
+        try {
+            for (Item<T> item = decoded.take(); item != end; item = decoded.take()) {
+                try {
+                    put(matched, new Item<>(item.input, null, matcher.match(item.input, item.image)), failure);
+                } catch (RuntimeException e) {
+                    listener.failed(item.input, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Error e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private void writeLoop(BlockingQueue<Item<T>> matched, WriteStage<T> writer, Listener listener,
+                           AtomicReference<Throwable> failure) {
+        try {
+            for (Item<T> item = matched.take(); item != end; item = matched.take()) {
+                try {
+                    writer.write(item.input, item.ascii);
+                    listener.done(item.input);
+                } catch (IOException | RuntimeException e) {
+                    listener.failed(item.input, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Error e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private void endStage(BlockingQueue<Item<T>> queue, int consumers, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        for (int i = 0; i < consumers; i++) {
+            put(queue, end, failure);
+        }
+    }
+
+    /**
+     * waits for room in the queue of the next stage, unless a stage thread died and nothing may ever take
+     * from the queue again
+     * @throws IllegalStateException if a stage thread died
+     */
+    private static <T> void put(BlockingQueue<Item<T>> queue, Item<T> item, AtomicReference<Throwable> failure)
+            throws InterruptedException {
+        while (!queue.offer(item, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+                throw new IllegalStateException("a conversion stage failed", failure.get());
+            }
+        }
+    }
+
+    private static void awaitAll(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // every stage reports its own failures to the listener
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, falling back to a cached pool of
+     * platform threads on JVMs without virtual threads.
+     */
+    static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * An input on its way through the pipeline.
+     */
+    private static class Item<T> {
+        private final Path input;
+        private final DecodedImage image;
+        private final T ascii;
+
+        Item(Path input, DecodedImage image, T ascii) {
+            this.input = input;
+            this.image = image;
+            this.ascii = ascii;
+        }
+    }
+}
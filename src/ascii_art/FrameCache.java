@@ -0,0 +1,179 @@
+package ascii_art;
+
+import ascii_output.StreamingAsciiOutput;
+import image.GrayscalePyramid;
+import image_char_matching.SubImgCharMatcher;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of rendered ASCII frames, keyed by the image pyramid, the resolution and the charset version of the
+ * matcher that produced them. A frame is recorded while it streams to its output, so a miss costs no
+ * extra pass. Frames are evicted in least recently used order once they hold more than a budget of chars.
+ */
+class FrameCache {
+    private final long maxChars;
+    private final LinkedHashMap<Key, char[][]> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedChars;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxChars maximal number of chars in all the cached frames
+     */
+    FrameCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Writes the cached frame to the output, if there is one.
+     *
+     * @param image      pyramid of the image the frame was rendered from
+     * @param resolution resolution of the frame
+     * @param matcher    matcher the frame was rendered with, in its current charset version
+     * @param output     output to write the frame to
+     * @return true if the frame was cached and written
+     */
+    boolean replay(GrayscalePyramid image, int resolution, SubImgCharMatcher matcher,
+                   StreamingAsciiOutput output) {
+        char[][] frame = frames.get(new Key(image, resolution, matcher));
+        if (frame == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        output.out(frame);
+        return true;
+    }
+
+    /**
+     * Wraps an output so that the frame written to it is cached under the given key once it ends.
+     *
+     * @param image      pyramid of the image the frame is rendered from
+     * @param resolution resolution of the frame
+     * @param matcher    matcher the frame is rendered with, in its current charset version
+     * @param output     output to forward the frame to
+     * @return an output that forwards and records the frame
+     */
+    StreamingAsciiOutput recording(GrayscalePyramid image, int resolution, SubImgCharMatcher matcher,
+                                   StreamingAsciiOutput output) {
+        Key key = new Key(image, resolution, matcher);
+        return new StreamingAsciiOutput() {
+            private char[][] frame;
+            private int row;
+
+            @Override
+            public void begin(int rows, int columns) {
+                frame = ((long) rows * columns <= maxChars) ? new char[rows][] : null;
+                row = 0;
+                output.begin(rows, columns);
+            }
+
+            @Override
+            public void row(char[] chars) {
+                if (frame != null) {
+                    frame[row++] = chars.clone();
+                }
+                output.row(chars);
+            }
+
+            @Override
+            public void end() {
+                output.end();
+                if (frame != null) {
+                    put(key, frame);
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops all the cached frames
+     */
+    void clear() {
+        frames.clear();
+        cachedChars = 0;
+    }
+
+    /**
+     * Gets the number of frames replayed from the cache
+     *
+     * @return number of cache hits
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of frames that were not cached
+     *
+     * @return number of cache misses
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of chars held by the cache
+     *
+     * @return chars in all the cached frames
+     */
+    long getCachedChars() {
+        return cachedChars;
+    }
+
+    private void put(Key key, char[][] frame) {
+        char[][] old = frames.put(key, frame);
+        if (old != null) {
+            cachedChars -= sizeOf(old);
+        }
+        cachedChars += sizeOf(frame);
+        Iterator<Map.Entry<Key, char[][]>> eldest = frames.entrySet().iterator();
+        while (cachedChars > maxChars) {
+            cachedChars -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(char[][] frame) {
+        return frame.length == 0 ? 0 : (long) frame.length * frame[0].length;
+    }
+
+    /**
+     * identifies a frame. the image and the matcher are compared by identity
+     */
+    private static class Key {
+        private final GrayscalePyramid image;
+        private final int resolution;
+        private final SubImgCharMatcher matcher;
+        private final long charsetVersion;
+
+        Key(GrayscalePyramid image, int resolution, SubImgCharMatcher matcher) {
+            this.image = image;
+            this.resolution = resolution;
+            this.matcher = matcher;
+            this.charsetVersion = matcher.getCharsetVersion();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return image == other.image && resolution == other.resolution && matcher == other.matcher
+                    && charsetVersion == other.charsetVersion;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(image), resolution, System.identityHashCode(matcher),
+                    charsetVersion);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ascii_art;
+
+import image_char_matching.SubImgCharMatcher;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the ASCII art of a grayscale grid up to date as the charset of its matcher changes, rewriting
+ * only the cells whose char changed.
+ * The cells are kept sorted by brightness. Matching is monotonic in brightness, so the chars of the
+ * sorted cells form runs, one per char at most. After a charset change the new runs are found by
+ * binary search, and only the parts of the old runs that now get a different char are rewritten. The
+ * work is proportional to the number of runs and of changed cells, not to the size of the grid.
+ */
+class IncrementalMatch {
+    private final double[][] grayscale;
+    private final SubImgCharMatcher matcher;
+    private final char[][] ascii;
+    private final int columns;
+    private final int[] cells; // cell indices (row * columns + col) sorted by brightness
+    private long charsetVersion;
+
+    // runs of equal chars over the sorted cells, the first sorted position of each and its char
+    private int[] runStarts;
+    private char[] runChars;
+    private int runCount;
+    private int[] newRunStarts;
+    private char[] newRunChars;
+    private int newRunCount;
+
+    /**
+     * Starts tracking a grid that was fully matched with the current charset of the matcher.
+     *
+     * @param grayscale grayscale value of every cell
+     * @param matcher   matcher the ASCII art was matched with
+     * @param ascii     the matched ASCII art, updated in place from now on
+     */
+    IncrementalMatch(double[][] grayscale, SubImgCharMatcher matcher, char[][] ascii) {
+        this.grayscale = grayscale;
+        this.matcher = matcher;
+        this.ascii = ascii;
+        this.columns = grayscale[0].length;
+        this.charsetVersion = matcher.getCharsetVersion();
+
+        int size = grayscale.length * columns;
+        cells = sortCells(size);
+
+        runStarts = new int[0];
+        runChars = new char[0];
+        startRuns();
+        for (int position = 0; position < size; position++) {
+            appendRun(position, charAt(position));
+        }
+        endRuns();
+    }
+
+    /**
+     * sorts the cell indices by brightness. the top bits of each non negative brightness are packed with
+     * the cell index into a long and sorted as primitives, and the few cells that end up out of order
+     * because of the dropped low bits are fixed by an insertion sort.
+     */
+    private int[] sortCells(int size) {
+        int indexBits = Math.max(1, Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+        long[] keys = new long[size];
+        for (int cell = 0; cell < size; cell++) {
+            long bits = Double.doubleToLongBits(Math.max(brightness(cell), 0));
+            keys[cell] = (bits >>> indexBits) << indexBits | cell;
+        }
+        Arrays.sort(keys);
+        int[] sorted = new int[size];
+        long indexMask = (1L << indexBits) - 1;
+        for (int i = 0; i < size; i++) {
+            int cell = (int) (keys[i] & indexMask);
+            int j = i;
+            while (j > 0 && brightness(sorted[j - 1]) > brightness(cell)) {
+                sorted[j] = sorted[j - 1];
+                j--;
+            }
+            sorted[j] = cell;
+        }
+        return sorted;
+    }
+
+    /**
+     * Rematches the cells whose char is affected by the charset changes since the last update.
+     *
+     * @return the ASCII art, the same array on every call
+     */
+    char[][] update() {
+        long version = matcher.getCharsetVersion();
+        if (version == charsetVersion || cells.length == 0) {
+            charsetVersion = version;
+            return ascii;
+        }
+        startRuns();
+        int last = cells.length - 1;
+        assign(0, last, match(0), match(last));
+        endRuns();
+        charsetVersion = version;
+        return ascii;
+    }
+
+    /**
+     * Assigns the new chars of the sorted positions [low, high], given the new chars at both ends.
+     */
+    private void assign(int low, int high, char lowChar, char highChar) {
+        if (lowChar == highChar) {
+            // matching is monotonic, so the whole range gets the same char
+            rewrite(low, high, lowChar);
+            appendRun(low, lowChar);
+            return;
+        }
+        if (high - low == 1) {
+            rewrite(low, low, lowChar);
+            appendRun(low, lowChar);
+            rewrite(high, high, highChar);
+            appendRun(high, highChar);
+            return;
+        }
+        int middle = (low + high) >>> 1;
+        assign(low, middle, lowChar, match(middle));
+        assign(middle + 1, high, match(middle + 1), highChar);
+    }
+
+    /**
+     * Sets the char of the sorted positions [low, high], touching only cells that had another char.
+     */
+    private void rewrite(int low, int high, char c) {
+        int run = findRun(low);
+        for (; run < runCount && runStarts[run] <= high; run++) {
+            if (runChars[run] == c) {
+                continue;
+            }
+            int end = (run + 1 < runCount) ? runStarts[run + 1] - 1 : cells.length - 1;
+            for (int position = Math.max(low, runStarts[run]); position <= Math.min(high, end); position++) {
+                ascii[cells[position] / columns][cells[position] % columns] = c;
+            }
+        }
+    }
+
+    /**
+     * finds the old run containing a sorted position
+     */
+    private int findRun(int position) {
+        int index = Arrays.binarySearch(runStarts, 0, runCount, position);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    private void startRuns() {
+        newRunStarts = new int[Math.max(runCount, 1)];
+        newRunChars = new char[newRunStarts.length];
+        newRunCount = 0;
+    }
+
+    private void appendRun(int start, char c) {
+        if (newRunCount > 0 && newRunChars[newRunCount - 1] == c) {
+            return;
+        }
+        if (newRunCount == newRunStarts.length) {
+            newRunStarts = Arrays.copyOf(newRunStarts, 2 * newRunCount);
+            newRunChars = Arrays.copyOf(newRunChars, 2 * newRunCount);
+        }
+        newRunStarts[newRunCount] = start;
+        newRunChars[newRunCount] = c;
+        newRunCount++;
+    }
+
+    private void endRuns() {
+        runStarts = newRunStarts;
+        runChars = newRunChars;
+        runCount = newRunCount;
+    }
+
+    private char match(int position) {
+        return matcher.getCharByImageBrightness(brightness(cells[position]));
+    }
+
+    private char charAt(int position) {
+        return ascii[cells[position] / columns][cells[position] % columns];
+    }
+
+    private double brightness(int cell) {
+        return grayscale[cell / columns][cell % columns];
+    }
+}
@@ -1,14 +1,15 @@
 package ascii_art;
 
-import ascii_output.AsciiOutput;
 import ascii_output.ConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
-import image.Image;
-import image.ImageParser;
+import ascii_output.StreamingAsciiOutput;
+import image.GrayscalePyramid;
+import image.TiledImage;
 import image_char_matching.SubImgCharMatcher;
+import metrics.StageMetrics;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
 import java.util.function.Consumer;
 
 /**
@@ -26,6 +27,7 @@ public class Shell {
     private static final String IMAGE = "image";
     private static final String OUTPUT = "output";
     private static final String ASCII_ART = "asciiArt";
+    private static final String STATS = "stats";
     private static final String ADD_ERR_MSG = "Did not add due to incorrect format.";
     private static final String REMOVE_ERR_MSG = "Did not remove due to incorrect format.";
     private static final String RES_INCORRECT_FORMAT = "Did not change resolution due to incorrect format.";
@@ -49,30 +51,36 @@ public class Shell {
     private static final String RES_DOWN = "down";
     private static final String ALL_CHARS = "all";
     private static final String SPACE_CHAR =  "space";
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final long PYRAMID_BUDGET_BYTES = 64L << 20;
+    private static final long FRAME_CACHE_CHARS = 4L << 20;
+    static final long MAX_DECODED_PIXELS = 1L << 25; // larger images are decoded in bands
 
 
-    private final AsciiOutput CONSOLE_OUTPUT = new ConsoleAsciiOutput(); //single instance of console output
-    private final AsciiOutput HTML_OUTPUT = new HtmlAsciiOutput("out.html", "Courier New");
+    private final StreamingAsciiOutput CONSOLE_OUTPUT = new ConsoleAsciiOutput(); //single instance of console output
+    private final StreamingAsciiOutput HTML_OUTPUT = new HtmlAsciiOutput("out.html", "Courier New");
     // single instance of html output
 
     private final SubImgCharMatcher charMatcher;
     private int resolution = DEFAULT_RESOLUTION;
-    private Image image;
-    private AsciiOutput output;
-    private char[][] imageAsAscii;
-    private HashMap<Integer, AsciiArtAlgorithm> algoMap;
+    private StreamingAsciiOutput output;
+    private GrayscalePyramid pyramid; // grayscale grids of the image, by resolution
+    private final FrameCache frameCache = new FrameCache(FRAME_CACHE_CHARS); // rendered frames
+    private AsciiArtAlgorithm algo; // algorithm of the last rendered resolution, rematched incrementally
+    private int algoResolution;
 
     /**
      * Constructs a new Shell instance with default settings.
      * It initializes the image, character set, and output method.
      */
     public Shell() {
-        imageAsAscii = null;
         output = CONSOLE_OUTPUT;
         charMatcher = new SubImgCharMatcher(DEFAULT_CHARS);
-        algoMap = new HashMap<>();
+        StageMetrics.registerCache("pyramid", () -> pyramid == null ? 0 : pyramid.getHits(),
+                () -> pyramid == null ? 0 : pyramid.getMisses());
+        StageMetrics.registerCache("frames", frameCache::getHits, frameCache::getMisses);
         try {
-            image = new Image(DEFAULT_IMAGE_NAME);
+            pyramid = loadImage(DEFAULT_IMAGE_NAME);
         } catch (IOException e) {
             System.out.println("cannot load default image");
         }
@@ -83,7 +91,7 @@ public class Shell {
      * command-line inputs. It reads user input until the 'exit' command is entered.
      * Support commands for displaying characters, adding or removing characters from the character set,
      * changing image resolution, loading different images, selecting output formats,
-     * and generating ASCII art from images.
+     * generating ASCII art from images, and printing the stage metrics.
      */
     public void run() {
         System.out.print(NEW_LINE);
@@ -114,11 +122,14 @@ public class Shell {
                     case ASCII_ART:
                         runAlgorithm();
                         break;
+                    case STATS:
+                        System.out.print(StageMetrics.get().getReport());
+                        break;
                     default:
                         System.out.println(COMMAND_NOT_FOUND_ERR);
                         break;
                 }
-            } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            } catch (IllegalArgumentException | IllegalStateException | IOException | UncheckedIOException e) {
                 System.out.println(e.getMessage());
             }
             System.out.print(NEW_LINE);
@@ -214,20 +225,29 @@ public class Shell {
         }
         String path = args[1];
         try {
-            image = new Image(path);
-            algoMap = new HashMap<>();
+            pyramid = loadImage(path);
+            frameCache.clear();
+            algo = null;
         } catch (IOException e) {
             throw new IOException(IMAGE_ERR);
         }
     }
 
+    /**
+     * opens an image for a pyramid that decodes it only when a resolution is first rendered. low
+     * resolutions are decoded sub-sampled, and images too large to decode whole are read in bands
+     */
+    private GrayscalePyramid loadImage(String path) throws IOException {
+        return new GrayscalePyramid(new TiledImage(path), PYRAMID_BUDGET_BYTES, TiledImage.DEFAULT_TOLERANCE,
+                MAX_DECODED_PIXELS);
+    }
 
     private int imageHeight() {
-        return ImageParser.getPaddedImageSize(image)[0];
+        return pyramid.getHeight();
     }
 
     private int imageWidth() {
-        return ImageParser.getPaddedImageSize(image)[1];
+        return pyramid.getWidth();
     }
 
     private void changeOutput(String[] args) throws IllegalArgumentException {
@@ -247,8 +267,11 @@ public class Shell {
     /**
      * Runs the ASCII art algorithm to convert the image into ASCII art and outputs the result.
      * If the character set is empty, throws an IllegalStateException.
-     * If the image or resolution has changed since the last run, re-runs the algorithm.
-     * If only the character set has changed, re-runs the algorithm without changing the image.
+     * The grayscale grid of the current resolution comes from the pyramid cache of the image, so
+     * changing the resolution back and forth does not recompute it. A frame rendered before with the
+     * same image, resolution and charset is written again from the frame cache without matching. The
+     * first render of a resolution streams the rows to the output as they are matched, and after
+     * charset edits only the affected cells are matched again.
      * Outputs the ASCII art result using the configured output method.
      *
      * @throws IllegalStateException if the character set is empty
@@ -257,14 +280,16 @@ public class Shell {
         if (charMatcher.getChars().isEmpty()) {
             throw new IllegalStateException(EMPTY_CHARS_ERR);
         }
-        if (algoMap.containsKey(resolution)){
-            imageAsAscii = algoMap.get(resolution).run();
-        } else {
-            AsciiArtAlgorithm algo = new AsciiArtAlgorithm(image, resolution, charMatcher);
-            algoMap.put(resolution, algo);
-            imageAsAscii = algo.run();
+        if (frameCache.replay(pyramid, resolution, charMatcher, output)) {
+            return;
+        }
+        if (algo == null || algoResolution != resolution) {
+            algo = new AsciiArtAlgorithm(pyramid.getGrayscale(resolution), charMatcher, PARALLELISM);
+            algoResolution = resolution;
         }
-        output.out(imageAsAscii);
+        // the first render streams its rows as they are matched, and after charset edits only the
+        // affected cells are matched again
+        algo.runIncremental(frameCache.recording(pyramid, resolution, charMatcher, output));
     }
 
     /**
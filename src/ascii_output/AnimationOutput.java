@@ -0,0 +1,28 @@
+package ascii_output;
+
+/**
+ * Output of an ASCII animation. Every frame comes with the rows that changed since the previous frame,
+ * so an output can redraw or store only those rows.
+ * An animation is a call to begin, one call to frame for each frame in order, and a call to end.
+ */
+public interface AnimationOutput {
+    /**
+     * Starts the animation
+     * @param rows number of rows in every frame
+     * @param columns number of chars in every row
+     * @param fps frames per second to play the animation at
+     */
+    void begin(int rows, int columns, int fps);
+
+    /**
+     * Outputs the next frame. The arrays may be reused by the caller once this returns.
+     * @param chars at least rows rows of chars
+     * @param changedRows true for every row that differs from the previous frame, all true for the first
+     */
+    void frame(char[][] chars, boolean[] changedRows);
+
+    /**
+     * Ends the animation
+     */
+    void end();
+}
@@ -0,0 +1,112 @@
+package ascii_output;
+
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays an ASCII animation on an ANSI terminal. Only the rows that changed are redrawn, by moving the
+ * cursor to them, and frames are paced to the requested frame rate.
+ */
+public class AnsiAnimationOutput implements AnimationOutput {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String CLEAR_SCREEN = "\u001b[2J";
+    private static final String HIDE_CURSOR = "\u001b[?25l";
+    private static final String SHOW_CURSOR = "\u001b[?25h";
+    private static final int MAX_MOVE_LENGTH = 16; // "ESC[row;1H"
+
+    private final Writer writer;
+    private char[] line = new char[0];
+    private int rows;
+    private long frameNanos;
+    private long nextFrame;
+
+    /**
+     * Creates an output that plays the animation on System.out
+     */
+    public AnsiAnimationOutput() {
+        this(new OutputStreamWriter(System.out));
+    }
+
+    /**
+     * Creates an output that writes the animation to the given writer
+     * @param writer the writer to write the escape sequences and rows to, buffered by this output
+     */
+    public AnsiAnimationOutput(Writer writer) {
+        this.writer = new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    @Override
+    public void begin(int rows, int columns, int fps) {
+        this.rows = rows;
+        frameNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        line = new char[MAX_MOVE_LENGTH + 2 * columns];
+        write(CLEAR_SCREEN + HIDE_CURSOR);
+        nextFrame = System.nanoTime();
+    }
+
+    @Override
+    public void frame(char[][] chars, boolean[] changedRows) {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.WRITE)) {
+            for (int row = 0; row < rows; row++) {
+                if (!changedRows[row]) {
+                    continue;
+                }
+                String move = "\u001b[" + (row + 1) + ";1H";
+                move.getChars(0, move.length(), line, 0);
+                int length = move.length();
+                for (char c : chars[row]) {
+                    line[length++] = c;
+                    line[length++] = ' ';
+                }
+                span.addBytes(length);
+                writeLine(length);
+            }
+            flush();
+        }
+        nextFrame += frameNanos;
+        long wait = nextFrame - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        } else {
+            nextFrame = System.nanoTime(); // fell behind, don't rush the following frames
+        }
+    }
+
+    @Override
+    public void end() {
+        write("\u001b[" + (rows + 1) + ";1H" + SHOW_CURSOR);
+        flush();
+    }
+
+    private void writeLine(int length) {
+        try {
+            writer.write(line, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(String s) {
+        try {
+            writer.write(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ascii_output;
+
+/**
+ * A StreamingAsciiOutput that can also draw every char in the color of its sub-image.
+ * Colors are quantized to 4 bits per channel, and a run of chars of the same quantized color is written
+ * with a single color change. Spaces show no color, so they never break a run.
+ */
+public interface ColorAsciiOutput extends StreamingAsciiOutput {
+    /**
+     * Outputs the next row of the frame in color. The arrays may be reused by the caller once this returns.
+     * @param row chars of the row
+     * @param colors packed 0xRRGGBB color of every char
+     */
+    void row(char[] row, int[] colors);
+
+    /**
+     * Output the specified 2D array of chars in color, row by row
+     * @param chars the chars
+     * @param colors packed 0xRRGGBB color of every char
+     */
+    default void out(char[][] chars, int[][] colors) {
+        begin(chars.length, chars.length == 0 ? 0 : chars[0].length);
+        for (int row = 0; row < chars.length; row++) {
+            row(chars[row], colors[row]);
+        }
+        end();
+    }
+
+    /**
+     * Quantizes a color to 4 bits per channel, so that close colors can share a run
+     * @param rgb packed 0xRRGGBB color
+     * @return the packed 0xRGB quantized color
+     */
+    static int quantize(int rgb) {
+        return (rgb >> 12) & 0xF00 | (rgb >> 8) & 0xF0 | (rgb >> 4) & 0xF;
+    }
+}
@@ -1,16 +1,182 @@
 package ascii_output;
 
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
 /**
  * Output a 2D array of chars to the console.
+ * Every line is built in a reused char buffer and written through a large buffered writer, which is
+ * flushed once per frame. Colored rows are drawn with ANSI 24-bit color escapes, one per run of chars of
+ * the same quantized color.
  * @author Dan Nirel
- */public class ConsoleAsciiOutput implements AsciiOutput{
+ */public class ConsoleAsciiOutput implements ColorAsciiOutput {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final String COLOR_RESET = "\u001b[0m";
+    private static final int MAX_COLOR_LENGTH = "\u001b[38;2;255;255;255m".length();
+    private static final int NO_COLOR = -1;
+
+    private final Writer writer;
+    private char[] line = new char[0];
+    private StageMetrics.Accumulator span; // measures the writes of the frame between begin and end
+
+    /**
+     * Creates an output that writes to System.out, in the charset System.out itself encodes chars with
+     */
+    public ConsoleAsciiOutput() {
+        this(new OutputStreamWriter(System.out, stdoutCharset()));
+    }
+
+    /**
+     * Creates an output that writes to the given writer
+     * @param writer the writer to write the lines to, buffered by this output
+     */
+    public ConsoleAsciiOutput(Writer writer) {
+        this.writer = new BufferedWriter(writer, BUFFER_SIZE);
+    }
+
+    @Override
+    public void begin(int rows, int columns) {
+        span = StageMetrics.accumulate(Stage.WRITE);
+        ensureLineCapacity(columns);
+    }
+
+    @Override
+    public void row(char[] row) {
+        resumeSpan();
+        ensureLineCapacity(row.length);
+        int length = 0;
+        for (char c : row) {
+            line[length++] = c;
+            line[length++] = ' ';
+        }
+        writeLine(length);
+    }
+
+    @Override
+    public void row(char[] row, int[] colors) {
+        resumeSpan();
+        ensureLineCapacity(row.length);
+        int length = 0;
+        int current = NO_COLOR;
+        for (int x = 0; x < row.length; x++) {
+            char c = row[x];
+            int color = ColorAsciiOutput.quantize(colors[x]);
+            if (c != ' ' && color != current) {
+                length = appendColor(color, length);
+                current = color;
+            }
+            line[length++] = c;
+            line[length++] = ' ';
+        }
+        if (current != NO_COLOR) {
+            COLOR_RESET.getChars(0, COLOR_RESET.length(), line, length);
+            length += COLOR_RESET.length();
+        }
+        writeLine(length);
+    }
+
     @Override
-    public void out(char[][] chars) {
-        for (int y = 0; y < chars.length ; y++) {
-            for (int x = 0; x < chars[y].length; x++) {
-                System.out.print(chars[y][x] + " ");
+    public void end() {
+        resumeSpan();
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (span != null) {
+                span.pause();
+                span.close();
+                span = null;
+            }
+        }
+    }
+
+    /**
+     * ends the line in the buffer and writes it, which ends the measured interval of the row
+     */
+    private void writeLine(int length) {
+        LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), line, length);
+        length += LINE_SEPARATOR.length();
+        try {
+            writer.write(line, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (span != null) {
+                span.addBytes(length);
+                span.pause();
+            }
+        }
+    }
+
+    /**
+     * starts measuring a write, rows are measured one at a time so that the work done between them,
+     * such as matching the next rows, is not counted
+     */
+    private void resumeSpan() {
+        if (span != null) {
+            span.resume();
+        }
+    }
+
+    /**
+     * appends the escape that sets the foreground to a quantized color to the line buffer
+     * @return the new length of the line
+     */
+    private int appendColor(int color, int length) {
+        char[] escape = ColorEscapes.ESCAPES[color];
+        System.arraycopy(escape, 0, line, length, escape.length);
+        return length + escape.length;
+    }
+
+    /**
+     * makes sure the line buffer can hold a row of the given length, each char followed by a space and
+     * possibly preceded by a color escape
+     */
+    private void ensureLineCapacity(int columns) {
+        int capacity = (2 + MAX_COLOR_LENGTH) * columns + COLOR_RESET.length() + LINE_SEPARATOR.length();
+        if (line.length < capacity) {
+            line = new char[capacity];
+        }
+    }
+
+    /**
+     * the charset of System.out: stdout.encoding from Java 19 on, sun.stdout.encoding when Java 17 writes
+     * to a console, and the default charset otherwise, like System.out
+     */
+    private static Charset stdoutCharset() {
+        for (String property : new String[]{"stdout.encoding", "sun.stdout.encoding"}) {
+            String name = System.getProperty(property);
+            if (name != null) {
+                try {
+                    return Charset.forName(name);
+                } catch (IllegalArgumentException e) {
+                    // unknown to this JVM, System.out falls back the same way
+                }
+            }
+        }
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * the escapes of all the quantized colors, built on the first colored row
+     */
+    private static class ColorEscapes {
+        private static final char[][] ESCAPES = new char[0x1000][];
+
+        static {
+            for (int color = 0; color < ESCAPES.length; color++) {
+                ESCAPES[color] = ("\u001b[38;2;" + ((color >> 8) & 0xF) * 0x11 + ";" + ((color >> 4) & 0xF) * 0x11
+                        + ";" + (color & 0xF) * 0x11 + "m").toCharArray();
             }
-            System.out.println();
         }
     }
 }
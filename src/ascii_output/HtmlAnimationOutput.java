@@ -0,0 +1,151 @@
+package ascii_output;
+
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Writes an ASCII animation to a single HTML file with a small script that plays it in a loop.
+ * Frames are streamed to the file as they arrive and every frame stores only the rows that changed,
+ * as a list of [row, text] pairs that the player applies on top of the previous frame.
+ */
+public class HtmlAnimationOutput implements AnimationOutput {
+    private static final double BASE_LINE_SPACING = 0.8;
+    private static final double BASE_FONT_SIZE = 150.0;
+    private static final int MAX_ESCAPE_LENGTH = 6; // "\u003c"
+    private static final int MAX_ROW_PREFIX_LENGTH = 16; // "[row,\""
+
+    private final String filename;
+    private final String fontName;
+    private Utf8ChannelWriter writer; // open between begin and end, null if writing failed
+    private char[] line = new char[0];
+    private int rows;
+
+    /**
+     * Creates an HTML animation output
+     * @param filename file to write
+     * @param fontName font of the page
+     */
+    public HtmlAnimationOutput(String filename, String fontName) {
+        this.filename = filename;
+        this.fontName = fontName;
+    }
+
+    @Override
+    public void begin(int rows, int columns, int fps) {
+        this.rows = rows;
+        line = new char[MAX_ROW_PREFIX_LENGTH + columns * MAX_ESCAPE_LENGTH + 3];
+        try {
+            writer = new Utf8ChannelWriter(filename, Utf8ChannelWriter.newBuffer());
+            writer.write(String.format(
+                "<!DOCTYPE html>\n"+
+                "<html>\n"+
+                "<head><meta charset=\"UTF-8\"></head>\n"+
+                "<body style=\""+
+                    "\tCOLOR:#000000;"+
+                    "\tTEXT-ALIGN:center;"+
+                    "\tFONT-SIZE:1px;\">\n"+
+                "<p id=\"frame\" style=\""+
+                    "\twhite-space:pre;"+
+                    "\tFONT-FAMILY:%s;"+
+                    "\tFONT-SIZE:%frem;"+
+                    "\tLETTER-SPACING:0.15em;"+
+                    "\tLINE-HEIGHT:%fem;\"></p>\n"+
+                "<script>\n"+
+                "const fps = %d;\n"+
+                "const frames = [\n",
+                    fontName, BASE_FONT_SIZE/columns, BASE_LINE_SPACING, fps));
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void frame(char[][] chars, boolean[] changedRows) {
+        if (writer == null) {
+            return;
+        }
+        try (StageMetrics.Span span = StageMetrics.start(Stage.WRITE)) {
+            long before = writer.getBytesWritten();
+            writer.write("[");
+            for (int row = 0; row < rows; row++) {
+                if (changedRows[row]) {
+                    writer.write(line, 0, appendRow(row, chars[row]));
+                }
+            }
+            writer.write("],\n");
+            span.addBytes(writer.getBytesWritten() - before);
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public void end() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(
+                "];\n"+
+                "const lines = new Array(" + rows + ").fill('');\n"+
+                "const frame = document.getElementById('frame');\n"+
+                "let next = 0;\n"+
+                "setInterval(() => {\n"+
+                "  for (const [row, text] of frames[next]) lines[row] = text;\n"+
+                "  frame.textContent = lines.join('\\n');\n"+
+                "  next = (next + 1) % frames.length;\n"+
+                "}, 1000 / fps);\n"+
+                "</script>\n"+
+                "</body>\n"+
+                "</html>\n");
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    /**
+     * writes one changed row as a [row, "text"] pair into the line buffer, escaped as a script string
+     * @return the length of the pair
+     */
+    private int appendRow(int row, char[] chars) {
+        String prefix = "[" + row + ",\"";
+        prefix.getChars(0, prefix.length(), line, 0);
+        int length = prefix.length();
+        for (char c : chars) {
+            if (c == '"' || c == '\\') {
+                line[length++] = '\\';
+                line[length++] = c;
+            } else if (c == '<' || c < ' ') {
+                String escape = String.format("\\u%04x", (int) c); // keeps "</script>" out of the script
+                escape.getChars(0, escape.length(), line, length);
+                length += escape.length();
+            } else {
+                line[length++] = c;
+            }
+        }
+        line[length++] = '"';
+        line[length++] = ']';
+        line[length++] = ',';
+        return length;
+    }
+
+    /**
+     * logs a failed write and drops the rest of the animation
+     */
+    private void fail() {
+        Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // already reported
+            }
+            writer = null;
+        }
+    }
+}
@@ -1,32 +1,95 @@
 package ascii_output;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import metrics.Stage;
+import metrics.StageMetrics;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Logger;
 
 /**
  * Output a 2D array of chars to an HTML file viewable in a web browser.
+ * Rows are escaped through a precomputed table into one reused buffer and written to the file as
+ * UTF-8 as they arrive. In run-length mode, long runs of spaces are replaced by a single empty element
+ * whose width is set by CSS, which keeps large blank areas small. Colored rows wrap every run of chars of
+ * the same quantized color in one span.
  * @author Dan Nirel
  */
-public class HtmlAsciiOutput implements AsciiOutput {
+public class HtmlAsciiOutput implements ColorAsciiOutput {
     private static final double BASE_LINE_SPACING = 0.8;
     private static final double BASE_FONT_SIZE = 150.0;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int MIN_RUN_LENGTH = 16; // shorter runs are cheaper to write as spaces
+    private static final char[][] ESCAPES = new char[128][];
+    private static final int MAX_ESCAPE_LENGTH = 5;
+    private static final int MAX_RUN_TAG_LENGTH = 32;
+    private static final char[] SPAN_START = "<span style=\"color:#".toCharArray();
+    private static final char[] SPAN_START_END = "\">".toCharArray();
+    private static final char[] SPAN_END = "</span>".toCharArray();
+    private static final int MAX_SPAN_LENGTH = SPAN_START.length + 3 + SPAN_START_END.length + SPAN_END.length;
+    private static final int NO_COLOR = -1;
+
+    static {
+        ESCAPES['<'] = "&lt;".toCharArray();
+        ESCAPES['>'] = "&gt;".toCharArray();
+        ESCAPES['&'] = "&amp;".toCharArray();
+    }
 
     private final String fontName;
     private final String filename;
+    private final WritableByteChannel channel; // written instead of the file when not null
+    private final boolean runLength;
+    private Utf8ChannelWriter writer; // open between begin and end, null if writing failed
+    private ByteBuffer buffer; // encoded bytes of every frame, allocated by the first one
+    private char[] line = new char[0];
+    private StageMetrics.Accumulator span; // measures the writes of the frame between begin and end
 
     public HtmlAsciiOutput(String filename, String fontName) {
+        this(filename, fontName, false);
+    }
+
+    /**
+     * Creates an HTML output
+     * @param filename file to write
+     * @param fontName font of the page
+     * @param runLength true to write long runs of spaces as a single element
+     */
+    public HtmlAsciiOutput(String filename, String fontName, boolean runLength) {
         this.fontName = fontName;
         this.filename = filename;
+        this.runLength = runLength;
+        this.channel = null;
+    }
+
+    /**
+     * Creates an HTML output that writes a single page to a channel, and closes it at the end of the page
+     * @param channel channel to write the page to
+     * @param fontName font of the page
+     * @param runLength true to write long runs of spaces as a single element
+     */
+    public HtmlAsciiOutput(WritableByteChannel channel, String fontName, boolean runLength) {
+        this.fontName = fontName;
+        this.filename = null;
+        this.runLength = runLength;
+        this.channel = channel;
     }
 
     @Override
-    public void out(char[][] chars) {
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+    public void begin(int rows, int columns) {
+        span = StageMetrics.accumulate(Stage.WRITE);
+        span.resume();
+        ensureLineCapacity(columns);
+        try {
+            if (buffer == null) {
+                buffer = Utf8ChannelWriter.newBuffer();
+            }
+            writer = channel != null ? new Utf8ChannelWriter(channel, buffer)
+                    : new Utf8ChannelWriter(filename, buffer);
             writer.write(String.format(
                 "<!DOCTYPE html>\n"+
                 "<html>\n"+
+                "<head><meta charset=\"UTF-8\">%s</head>\n"+
                 "<body style=\""+
                     "\tCOLOR:#000000;"+
                     "\tTEXT-ALIGN:center;"+
@@ -37,27 +100,164 @@ public class HtmlAsciiOutput implements AsciiOutput {
                     "\tFONT-SIZE:%frem;"+
                     "\tLETTER-SPACING:0.15em;"+
                     "\tLINE-HEIGHT:%fem;\">\n",
-                    fontName, BASE_FONT_SIZE/chars[0].length, BASE_LINE_SPACING));
-
-            for(int y = 0 ; y < chars.length ; y++) {
-                for (int x = 0; x < chars[y].length ; x++) {
-                    String htmlRep;
-                    switch(chars[y][x]) {
-                        case '<': htmlRep = "&lt;";  break;
-                        case '>': htmlRep = "&gt;";  break;
-                        case '&': htmlRep = "&amp;"; break;
-                        default:  htmlRep = String.valueOf(chars[y][x]);
-                    }
-                    writer.write(htmlRep);
+                    runLength ? "<style>i{display:inline-block;width:calc(var(--n)*(1ch + 0.15em))}</style>" : "",
+                    fontName, BASE_FONT_SIZE/columns, BASE_LINE_SPACING));
+        } catch(IOException e) {
+            fail();
+        }
+        span.pause();
+    }
+
+    @Override
+    public void row(char[] row) {
+        row(row, null);
+    }
+
+    @Override
+    public void row(char[] row, int[] colors) {
+        if (writer == null) {
+            return;
+        }
+        // rows are measured one at a time, so that matching the next rows is not counted
+        if (span != null) {
+            span.resume();
+        }
+        ensureLineCapacity(row.length);
+        int length = 0;
+        int current = NO_COLOR;
+        for (int x = 0; x < row.length; x++) {
+            char c = row[x];
+            if (runLength && c == ' ') {
+                int end = x;
+                while (end < row.length && row[end] == ' ') {
+                    end++;
+                }
+                if (end - x >= MIN_RUN_LENGTH) {
+                    length = appendRun(end - x, length);
+                    x = end - 1;
+                    continue;
+                }
+            }
+            if (colors != null && c != ' ') {
+                int color = ColorAsciiOutput.quantize(colors[x]);
+                if (color != current) {
+                    length = appendSpan(current, color, length);
+                    current = color;
                 }
-                writer.newLine();
             }
+            char[] escape = c < ESCAPES.length ? ESCAPES[c] : null;
+            if (escape == null) {
+                line[length++] = c;
+            } else {
+                System.arraycopy(escape, 0, line, length, escape.length);
+                length += escape.length;
+            }
+        }
+        if (current != NO_COLOR) {
+            System.arraycopy(SPAN_END, 0, line, length, SPAN_END.length);
+            length += SPAN_END.length;
+        }
+        LINE_SEPARATOR.getChars(0, LINE_SEPARATOR.length(), line, length);
+        length += LINE_SEPARATOR.length();
+        try {
+            writer.write(line, 0, length);
+        } catch(IOException e) {
+            fail();
+        }
+        if (span != null) {
+            span.pause();
+        }
+    }
+
+    @Override
+    public void end() {
+        if (span != null) {
+            span.resume();
+        }
+        if (writer == null) {
+            endSpan();
+            return;
+        }
+        try {
             writer.write(
                 "</p>\n"+
                 "</body>\n"+
                 "</html>\n");
+            writer.close();
+            if (span != null) {
+                span.addBytes(writer.getBytesWritten());
+            }
+            writer = null;
         } catch(IOException e) {
-            Logger.getGlobal().severe(String.format("Failed to write to \"%s\"", filename));
+            fail();
+        }
+        endSpan();
+    }
+
+    private void endSpan() {
+        if (span != null) {
+            span.pause();
+            span.close();
+            span = null;
+        }
+    }
+
+    /**
+     * appends an element standing for a run of spaces to the line buffer
+     * @return the new length of the line
+     */
+    private int appendRun(int count, int length) {
+        String tag = "<i style=\"--n:" + count + "\"></i>";
+        tag.getChars(0, tag.length(), line, length);
+        return length + tag.length();
+    }
+
+    /**
+     * appends the end of the span of the previous color, if any, and the start of a span of a new color
+     * to the line buffer
+     * @param previous quantized color of the open span, or NO_COLOR
+     * @param color quantized 0xRGB color of the new span
+     * @return the new length of the line
+     */
+    private int appendSpan(int previous, int color, int length) {
+        if (previous != NO_COLOR) {
+            System.arraycopy(SPAN_END, 0, line, length, SPAN_END.length);
+            length += SPAN_END.length;
+        }
+        System.arraycopy(SPAN_START, 0, line, length, SPAN_START.length);
+        length += SPAN_START.length;
+        line[length++] = Character.forDigit((color >> 8) & 0xF, 16);
+        line[length++] = Character.forDigit((color >> 4) & 0xF, 16);
+        line[length++] = Character.forDigit(color & 0xF, 16);
+        System.arraycopy(SPAN_START_END, 0, line, length, SPAN_START_END.length);
+        return length + SPAN_START_END.length;
+    }
+
+    /**
+     * makes sure the line buffer can hold a fully escaped row of the given length, with a span around
+     * every char
+     */
+    private void ensureLineCapacity(int columns) {
+        int capacity = columns * (MAX_ESCAPE_LENGTH + MAX_SPAN_LENGTH) + LINE_SEPARATOR.length()
+                + (runLength ? columns / MIN_RUN_LENGTH * MAX_RUN_TAG_LENGTH : 0);
+        if (line.length < capacity) {
+            line = new char[capacity];
+        }
+    }
+
+    /**
+     * logs a failed write and drops the rest of the frame
+     */
+    private void fail() {
+        Logger.getGlobal().severe(channel != null ? "Failed to write to the output channel"
+                : String.format("Failed to write to \"%s\"", filename));
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // already reported
+            }
+            writer = null;
         }
     }
 }
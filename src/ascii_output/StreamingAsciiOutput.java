@@ -0,0 +1,38 @@
+package ascii_output;
+
+/**
+ * An AsciiOutput that accepts the rows of the ASCII image one at a time, so a producer can write rows
+ * as soon as they are ready instead of building the whole 2D array first.
+ * A frame is a call to begin, one call to row for each row in order, and a call to end.
+ */
+public interface StreamingAsciiOutput extends AsciiOutput {
+    /**
+     * Starts a new frame
+     * @param rows number of rows that will follow
+     * @param columns number of chars in every row
+     */
+    void begin(int rows, int columns);
+
+    /**
+     * Outputs the next row of the frame. The array may be reused by the caller once this returns.
+     * @param row chars of the row
+     */
+    void row(char[] row);
+
+    /**
+     * Ends the current frame
+     */
+    void end();
+
+    /**
+     * Output the specified 2D array of chars, row by row
+     */
+    @Override
+    default void out(char[][] chars) {
+        begin(chars.length, chars.length == 0 ? 0 : chars[0].length);
+        for (char[] row : chars) {
+            row(row);
+        }
+        end();
+    }
+}
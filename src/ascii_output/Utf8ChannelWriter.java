@@ -0,0 +1,120 @@
+package ascii_output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Package-private writer that encodes chars as UTF-8 straight into a large buffer and writes it to a
+ * file, or any other channel, whenever it fills up. The buffer belongs to the caller, so an output that
+ * writes many frames reuses a single buffer for all of them. It is a heap buffer, as direct buffers are
+ * only freed once the garbage collector gets to them.
+ */
+class Utf8ChannelWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer bytes;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private long bytesWritten;
+
+    /**
+     * opens a file for writing, replacing its content
+     * @param filename file to write
+     * @param buffer buffer from newBuffer, not used by any other open writer
+     * @throws IOException if the file cannot be opened
+     */
+    Utf8ChannelWriter(String filename, ByteBuffer buffer) throws IOException {
+        this(FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), buffer);
+    }
+
+    /**
+     * writes to an open channel, which is closed with the writer
+     * @param channel channel to write the encoded chars to
+     * @param buffer buffer from newBuffer, not used by any other open writer
+     */
+    Utf8ChannelWriter(WritableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.bytes = buffer.clear();
+    }
+
+    /**
+     * allocates a buffer for writers
+     * @return an empty buffer
+     */
+    static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * encodes chars into the buffer
+     * @param chars array holding the chars
+     * @param offset index of the first char
+     * @param length number of chars
+     * @throws IOException if writing a full buffer fails
+     */
+    void write(char[] chars, int offset, int length) throws IOException {
+        encode(CharBuffer.wrap(chars, offset, length));
+    }
+
+    /**
+     * encodes a string into the buffer
+     * @param text string to write
+     * @throws IOException if writing a full buffer fails
+     */
+    void write(String text) throws IOException {
+        encode(CharBuffer.wrap(text));
+    }
+
+    private void encode(CharBuffer chars) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        bytesWritten += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * gets the number of bytes written to the file so far, not counting the buffered ones
+     * @return written bytes
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * writes the remaining bytes and closes the file or channel
+     * @throws IOException if writing or closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+}
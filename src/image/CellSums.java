@@ -0,0 +1,298 @@
+package image;
+
+import java.util.Arrays;
+
+/**
+ * Package-private accumulator of the fixed point luminance sums of the sub-images of an image whose
+ * rows arrive one at a time. The image is padded virtually like ImageParser.padImage: the white margins
+ * of every cell are summed once, and only the stored pixels are added per row, so the sums are exactly
+ * the ones of the luminance table of the padded image.
+ * With a sampling step above 1 only every step-th pixel of every step-th row is added, and the sum of
+ * the stored pixels of a cell is estimated from the mean of its samples.
+ * The red, green and blue sums of the cells can be accumulated too, in the same pass over the rows, for
+ * the mean color of every cell.
+ */
+class CellSums {
+    private static final int COLOR_CHUNK = 256; // pixels whose blue sum fits in 16 bits
+
+    private final int width;
+    private final int height;
+    private final int resolution;
+    private final int step;
+    private final int rows;
+    private final int subImageSize;
+    private final int rowMargin;
+    private final int colMargin;
+    private final long[] paddingSums; // luminance of the white padding of every cell
+    private final long[] storedAreas; // number of stored pixels in every cell
+    private final long[] pixelSums; // luminance of the pixels added to every cell
+    private final int[] samples; // number of pixels added to every cell, only counted when sampling
+    private final long[] sums;
+    private final int[] rowLuminance; // luminance of the row being added, only used without sampling
+    // channel sums of the pixels added to every cell, null when colors are not accumulated
+    private final long[] redSums;
+    private final long[] greenSums;
+    private final long[] blueSums;
+
+    /**
+     * creates the exact sums of an image of the given size
+     * @param width width of the image
+     * @param height height of the image
+     * @param resolution number of sub-images per row of the padded image, a power of 2
+     */
+    CellSums(int width, int height, int resolution) {
+        this(width, height, resolution, 1);
+    }
+
+    /**
+     * creates the sums of an image of the given size, estimated from a sample of its pixels
+     * @param width width of the image
+     * @param height height of the image
+     * @param resolution number of sub-images per row of the padded image, a power of 2
+     * @param step distance between the sampled pixels in both directions, 1 for exact sums
+     */
+    CellSums(int width, int height, int resolution, int step) {
+        this(width, height, resolution, step, false);
+    }
+
+    /**
+     * creates the sums of an image of the given size, estimated from a sample of its pixels
+     * @param width width of the image
+     * @param height height of the image
+     * @param resolution number of sub-images per row of the padded image, a power of 2
+     * @param step distance between the sampled pixels in both directions, 1 for exact sums
+     * @param colors true to accumulate the channel sums of the cells as well
+     */
+    CellSums(int width, int height, int resolution, int step, boolean colors) {
+        int paddedHeight = ImageParser.getPaddedSize(height);
+        int paddedWidth = ImageParser.getPaddedSize(width);
+        if (resolution <= 0 || resolution > paddedWidth || Integer.bitCount(resolution) != 1) {
+            throw new IllegalArgumentException("resolution must be a power of 2 up to the padded width");
+        }
+        this.width = width;
+        this.height = height;
+        this.resolution = resolution;
+        this.step = step;
+        subImageSize = paddedWidth / resolution;
+        rows = Math.min(resolution, paddedHeight / subImageSize);
+        rowMargin = (paddedHeight - height) / 2;
+        colMargin = (paddedWidth - width) / 2;
+        paddingSums = new long[rows * resolution];
+        storedAreas = new long[paddingSums.length];
+        pixelSums = new long[paddingSums.length];
+        samples = step > 1 ? new int[paddingSums.length] : null;
+        sums = new long[paddingSums.length];
+        rowLuminance = step > 1 ? null : new int[width];
+        redSums = colors ? new long[paddingSums.length] : null;
+        greenSums = colors ? new long[paddingSums.length] : null;
+        blueSums = colors ? new long[paddingSums.length] : null;
+
+        long white = LuminanceTable.luminance(0xFFFFFFFF);
+        for (int cell = 0; cell < paddingSums.length; cell++) {
+            int top = (cell / resolution) * subImageSize - rowMargin;
+            int left = (cell % resolution) * subImageSize - colMargin;
+            storedAreas[cell] = (long) overlap(top, height) * overlap(left, width);
+            paddingSums[cell] = ((long) subImageSize * subImageSize - storedAreas[cell]) * white;
+        }
+    }
+
+    /**
+     * starts over with no rows added
+     */
+    void reset() {
+        Arrays.fill(pixelSums, 0);
+        if (samples != null) {
+            Arrays.fill(samples, 0);
+        }
+        if (redSums != null) {
+            Arrays.fill(redSums, 0);
+            Arrays.fill(greenSums, 0);
+            Arrays.fill(blueSums, 0);
+        }
+    }
+
+    /**
+     * adds a row of the image to the sums of its cells
+     * @param pixels ARGB pixels of the row, every step-th pixel of the image row when sampling
+     * @param y index of the row in the unpadded image, a multiple of the step
+     */
+    void addRow(int[] pixels, int y) {
+        addRow(pixels, 0, y);
+    }
+
+    /**
+     * adds a row of the image to the sums of its cells
+     * @param pixels ARGB pixels holding the row, every step-th pixel of the image row when sampling
+     * @param from index of the first pixel of the row in the array
+     * @param y index of the row in the unpadded image, a multiple of the step
+     */
+    void addRow(int[] pixels, int from, int y) {
+        int cellRow = (y + rowMargin) / subImageSize;
+        if (cellRow >= rows) {
+            return;
+        }
+        int rowStart = cellRow * resolution;
+        if (samples == null) {
+            // the row is split into the runs of pixels of each cell, summed by the kernel
+            LuminanceKernel.INSTANCE.luminance(pixels, from, rowLuminance, width);
+            int x = 0;
+            while (x < width) {
+                int cell = (x + colMargin) / subImageSize;
+                int end = Math.min(width, (cell + 1) * subImageSize - colMargin);
+                pixelSums[rowStart + cell] += LuminanceKernel.INSTANCE.sum(rowLuminance, x, end - x);
+                if (redSums != null) {
+                    addColors(pixels, from + x, end - x, rowStart + cell);
+                }
+                x = end;
+            }
+            return;
+        }
+        int count = getSampledWidth();
+        for (int i = 0; i < count; i++) {
+            int cell = rowStart + (i * step + colMargin) / subImageSize;
+            int rgb = pixels[from + i];
+            pixelSums[cell] += LuminanceTable.luminance(rgb);
+            samples[cell]++;
+            if (redSums != null) {
+                redSums[cell] += (rgb >> 16) & 0xFF;
+                greenSums[cell] += (rgb >> 8) & 0xFF;
+                blueSums[cell] += rgb & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * adds the channels of a run of pixels of one cell. red and blue are summed together in one int, at
+     * most COLOR_CHUNK pixels at a time so that blue cannot carry into red
+     */
+    private void addColors(int[] pixels, int from, int count, int cell) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int start = from; start < from + count; start += COLOR_CHUNK) {
+            int end = Math.min(from + count, start + COLOR_CHUNK);
+            int redBlue = 0;
+            int greenChunk = 0;
+            for (int i = start; i < end; i++) {
+                redBlue += pixels[i] & 0xFF00FF;
+                greenChunk += pixels[i] & 0xFF00;
+            }
+            red += redBlue >>> 16;
+            green += greenChunk >>> 8;
+            blue += redBlue & 0xFFFF;
+        }
+        redSums[cell] += red;
+        greenSums[cell] += green;
+        blueSums[cell] += blue;
+    }
+
+    /**
+     * number of pixels in a sampled row
+     */
+    int getSampledWidth() {
+        return (width + step - 1) / step;
+    }
+
+    /**
+     * number of leading rows of the unpadded image that fall in some cell, the later ones are ignored
+     */
+    int getCoveredHeight() {
+        return Math.max(0, Math.min(height, rows * subImageSize - rowMargin));
+    }
+
+    /**
+     * the sums of the cells, row by row, including their padding. when sampling, a cell without any sample
+     * takes the mean of all the samples. the array is reused by the next call
+     */
+    long[] getSums() {
+        if (samples == null) {
+            for (int cell = 0; cell < sums.length; cell++) {
+                sums[cell] = paddingSums[cell] + pixelSums[cell];
+            }
+            return sums;
+        }
+        long totalSum = 0;
+        long totalSamples = 0;
+        for (int cell = 0; cell < sums.length; cell++) {
+            totalSum += pixelSums[cell];
+            totalSamples += samples[cell];
+        }
+        double fallbackMean = totalSamples == 0 ? 0 : totalSum / (double) totalSamples;
+        for (int cell = 0; cell < sums.length; cell++) {
+            double mean = samples[cell] == 0 ? fallbackMean : pixelSums[cell] / (double) samples[cell];
+            sums[cell] = paddingSums[cell] + Math.round(mean * storedAreas[cell]);
+        }
+        return sums;
+    }
+
+    /**
+     * the mean colors of the cells, row by row, including their white padding. when sampling, the colors
+     * are estimated like the sums
+     * @return packed 0xRRGGBB colors, in a new array
+     * @throws IllegalStateException if the colors are not accumulated
+     */
+    int[] getColors() {
+        if (redSums == null) {
+            throw new IllegalStateException("colors are not accumulated");
+        }
+        int[] colors = new int[sums.length];
+        double redFallback = fallbackMean(redSums);
+        double greenFallback = fallbackMean(greenSums);
+        double blueFallback = fallbackMean(blueSums);
+        for (int cell = 0; cell < colors.length; cell++) {
+            colors[cell] = meanChannel(redSums, cell, redFallback) << 16
+                    | meanChannel(greenSums, cell, greenFallback) << 8 | meanChannel(blueSums, cell, blueFallback);
+        }
+        return colors;
+    }
+
+    /**
+     * the mean of a channel over all the samples, which a cell without any sample takes. 0 when not
+     * sampling
+     */
+    private double fallbackMean(long[] channelSums) {
+        if (samples == null) {
+            return 0;
+        }
+        long totalSum = 0;
+        long totalSamples = 0;
+        for (int cell = 0; cell < samples.length; cell++) {
+            totalSum += channelSums[cell];
+            totalSamples += samples[cell];
+        }
+        return totalSamples == 0 ? 0 : totalSum / (double) totalSamples;
+    }
+
+    /**
+     * the mean of one channel in a cell, the padding counting as white. when sampling, a cell without any
+     * sample takes the fallback mean
+     */
+    private int meanChannel(long[] channelSums, int cell, double fallbackMean) {
+        double stored = channelSums[cell];
+        if (samples != null) {
+            double mean = samples[cell] == 0 ? fallbackMean : channelSums[cell] / (double) samples[cell];
+            stored = mean * storedAreas[cell];
+        }
+        long area = (long) subImageSize * subImageSize;
+        return (int) Math.round((stored + (double) (area - storedAreas[cell]) * 0xFF) / area);
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getResolution() {
+        return resolution;
+    }
+
+    int getSubImageSize() {
+        return subImageSize;
+    }
+
+    /**
+     * length of the part of [start, start + subImageSize) that lies inside [0, size)
+     */
+    private int overlap(int start, int size) {
+        return Math.max(0, Math.min(start + subImageSize, size) - Math.max(start, 0));
+    }
+}
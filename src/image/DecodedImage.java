@@ -0,0 +1,45 @@
+package image;
+
+import java.io.IOException;
+
+/**
+ * The pixels of a decoded image file, before an Image builds the luminance table over them. Decoding
+ * waits on the disk while the table is CPU bound, so keeping them apart lets each run on its own threads.
+ */
+public class DecodedImage {
+    final int[] pixels; // packed ARGB values, row by row
+    final int width;
+    final int height;
+
+    DecodedImage(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * decodes an image file, measured as the DECODE stage
+     * @param filename path to image
+     * @return the decoded pixels
+     * @throws IOException if the file cannot be read or is not a supported image
+     */
+    public static DecodedImage read(String filename) throws IOException {
+        return PixelReader.decode(filename);
+    }
+
+    /**
+     * gets the width of the image
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * gets the height of the image
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,98 @@
+package image;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Computes the sub-image grayscale grid of a sequence of equally sized frames, reusing its buffers
+ * across frames and reporting which cells changed since the previous frame.
+ * The frames are padded virtually like ImageParser.padImage and the cell sums are exact fixed point
+ * luminance sums, so the grid of every frame equals ImageParser.extractSubImageGrayscale of that frame,
+ * and a cell whose sum did not change is known to be unchanged.
+ */
+public class FrameGrayscale {
+    private final int width;
+    private final int height;
+    private final CellSums cells;
+    private final long[] previousSums;
+    private final int[] rowPixels;
+    private final double[][] grayscale;
+    private boolean first = true;
+
+    /**
+     * Creates a grid for frames of the given size
+     *
+     * @param width      width of every frame
+     * @param height     height of every frame
+     * @param resolution number of sub-images per row of the padded frame, a power of 2
+     */
+    public FrameGrayscale(int width, int height, int resolution) {
+        this.width = width;
+        this.height = height;
+        cells = new CellSums(width, height, resolution);
+        previousSums = new long[cells.getSums().length];
+        rowPixels = new int[width];
+        grayscale = new double[resolution][resolution];
+    }
+
+    /**
+     * Computes the grid of the next frame
+     *
+     * @param frame        the frame, of the size given to the constructor
+     * @param changedCells set to true for every cell whose grayscale changed since the previous frame,
+     *                     and to false for the others. Every cell is changed on the first frame.
+     * @return the number of changed cells
+     */
+    public int update(BufferedImage frame, boolean[] changedCells) {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("all the frames must have the same size");
+        }
+        cells.reset();
+        for (int y = 0; y < cells.getCoveredHeight(); y++) {
+            frame.getRGB(0, y, width, 1, rowPixels, 0, width);
+            cells.addRow(rowPixels, y);
+        }
+
+        long[] sums = cells.getSums();
+        int resolution = cells.getResolution();
+        int changed = 0;
+        for (int cell = 0; cell < sums.length; cell++) {
+            boolean cellChanged = first || sums[cell] != previousSums[cell];
+            changedCells[cell] = cellChanged;
+            if (cellChanged) {
+                grayscale[cell / resolution][cell % resolution] =
+                        ImageParser.toGrayscale(sums[cell], cells.getSubImageSize());
+                previousSums[cell] = sums[cell];
+                changed++;
+            }
+        }
+        first = false;
+        return changed;
+    }
+
+    /**
+     * Gets the grayscale grid of the last frame. The array is reused by the next update.
+     *
+     * @return resolution X resolution grayscale values, rows past getRows() are 0
+     */
+    public double[][] getGrayscale() {
+        return grayscale;
+    }
+
+    /**
+     * Gets the number of sub-image rows in the grid
+     *
+     * @return rows of cells that cover the frame
+     */
+    public int getRows() {
+        return cells.getRows();
+    }
+
+    /**
+     * Gets the number of cells, the size of the changedCells array of update
+     *
+     * @return rows times resolution
+     */
+    public int getCellCount() {
+        return previousSums.length;
+    }
+}
@@ -0,0 +1,278 @@
+package image;
+
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A cache of the sub-image grayscale grids of one padded image, at power of 2 resolutions.
+ * Every level keeps the exact fixed point luminance sums of its cells. A missing level is summed 2x2
+ * from the level of twice its resolution when that one is cached, and read from the luminance table of
+ * the image otherwise, or decoded band by band from the file of a TiledImage, so the grids are identical
+ * to ImageParser.extractSubImageGrayscale.
+ * A pyramid of a TiledImage may be given a tolerance, and then levels coarse enough are decoded with
+ * source sub-sampling instead, and are only estimates within that tolerance, until a finer level needs
+ * the whole decoded image. The cached estimates are dropped then, so they are read again exactly when next
+ * requested. Images small enough are decoded whole once when first needed, and from then
+ * on every level is read exactly from the decoded image.
+ * The levels are evicted in least recently used order once they take more than the memory budget, and
+ * a level larger than the whole budget is not cached at all.
+ */
+public class GrayscalePyramid {
+    private Image image; // null for a tiled image until it is decoded whole
+    private final TiledImage tiledImage; // null for an image in memory
+    private final double tolerance;
+    private final long maxDecodedPixels;
+    private final int width;
+    private final int height;
+    private final long budgetBytes;
+    private final LinkedHashMap<Integer, long[][]> levels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<Integer> estimated = new HashSet<>(); // cached levels that are sub-sampled estimates
+    private long cachedBytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates an empty pyramid
+     *
+     * @param image       padded image, with power of 2 dimensions
+     * @param budgetBytes maximal memory of the cached levels
+     */
+    public GrayscalePyramid(Image image, long budgetBytes) {
+        this.image = image;
+        this.tiledImage = null;
+        this.tolerance = 0;
+        this.maxDecodedPixels = 0;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Creates an empty pyramid of an image that is decoded in bands whenever a level is missing
+     *
+     * @param image       the tiled image, padded virtually
+     * @param budgetBytes maximal memory of the cached levels
+     */
+    public GrayscalePyramid(TiledImage image, long budgetBytes) {
+        this(image, budgetBytes, 0, 0);
+    }
+
+    /**
+     * Creates an empty pyramid of an image file that is decoded when a level is missing. Levels that
+     * TiledImage.getSubsampling allows to sub-sample within the tolerance are decoded sub-sampled, and
+     * the others are read from the whole decoded image if it has at most maxDecodedPixels pixels, or
+     * decoded band by band otherwise.
+     *
+     * @param image            the tiled image, padded virtually
+     * @param budgetBytes      maximal memory of the cached levels
+     * @param tolerance        allowed error of a sub-sampled average, 0 to never sub-sample
+     * @param maxDecodedPixels largest image to decode whole, 0 to always decode in bands
+     */
+    public GrayscalePyramid(TiledImage image, long budgetBytes, double tolerance, long maxDecodedPixels) {
+        this.image = null;
+        this.tiledImage = image;
+        this.tolerance = tolerance;
+        this.maxDecodedPixels = maxDecodedPixels;
+        this.width = image.getPaddedWidth();
+        this.height = image.getPaddedHeight();
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Gets the width of the padded image
+     *
+     * @return width in pixels, a power of 2
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the padded image
+     *
+     * @return height in pixels, a power of 2
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the average grayscale of each sub-image at a resolution, like
+     * ImageParser.extractSubImageGrayscale.
+     *
+     * @param resolution the number of sub-images per row, a power of 2
+     * @return a new resolution X resolution array of grayscale values
+     * @throws UncheckedIOException if the file of a tiled image cannot be decoded anymore
+     */
+    public synchronized double[][] getGrayscale(int resolution) {
+        // decoding the file is measured by its own spans, only the work on the sums here is averaging
+        try (StageMetrics.Accumulator span = StageMetrics.accumulate(Stage.AVERAGE)) {
+            long[][] sums = getLevel(resolution, span);
+            span.resume();
+            int subImageSize = width / resolution;
+            double[][] grayscale = new double[resolution][resolution];
+            for (int row = 0; row < sums.length; row++) {
+                for (int col = 0; col < resolution; col++) {
+                    grayscale[row][col] = ImageParser.toGrayscale(sums[row][col], subImageSize);
+                }
+            }
+            span.addPixels((long) sums.length * subImageSize * width);
+            span.pause();
+            return grayscale;
+        }
+    }
+
+    /**
+     * Gets the memory taken by the cached levels
+     *
+     * @return bytes of luminance sums held
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * Gets the memory budget of the pyramid
+     *
+     * @return maximal bytes of luminance sums held
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Gets the number of requests answered by a cached level
+     *
+     * @return number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of requests that had to build their level
+     *
+     * @return number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d levels %s, %d/%d KB, %d hits, %d misses", levels.size(), levels.keySet(),
+                cachedBytes / 1024, budgetBytes / 1024, hits, misses);
+    }
+
+    /**
+     * gets the sums of a level, measuring the halving and table lookups in the averaging span
+     */
+    private long[][] getLevel(int resolution, StageMetrics.Accumulator span) {
+        long[][] level = levels.get(resolution);
+        if (level != null) {
+            hits++;
+            return level;
+        }
+        misses++;
+        long[][] finer = levels.get(2 * resolution);
+        if (finer != null) {
+            span.resume();
+            level = halve(finer, resolution);
+            span.pause();
+            if (estimated.contains(2 * resolution)) {
+                estimated.add(resolution); // the sums of estimates are estimates too
+            }
+        } else {
+            level = sumFromImage(resolution, span);
+        }
+        if (sizeOf(level) <= budgetBytes) {
+            levels.put(resolution, level);
+            cachedBytes += sizeOf(level);
+            evict();
+        } else {
+            estimated.remove(resolution);
+        }
+        return level;
+    }
+
+    private long[][] sumFromImage(int resolution, StageMetrics.Accumulator span) {
+        if (image == null) {
+            // once the whole image is in memory every level is read exactly from its table
+            try {
+                int subsampling = tiledImage.getSubsampling(resolution, tolerance);
+                if (subsampling > 1
+                        || (long) tiledImage.getWidth() * tiledImage.getHeight() > maxDecodedPixels) {
+                    if (subsampling > 1) {
+                        estimated.add(resolution);
+                    }
+                    return tiledImage.getFixedLuminanceSums(resolution, subsampling);
+                }
+                image = ImageParser.padImage(new Image(tiledImage.getFilename()));
+                dropEstimates();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        span.resume();
+        int subImageSize = image.getWidth() / resolution;
+        long[][] sums = new long[ImageParser.getSubImageRows(image, resolution)][resolution];
+        for (int row = 0; row < sums.length; row++) {
+            for (int col = 0; col < resolution; col++) {
+                sums[row][col] = image.getFixedLuminanceSum(row * subImageSize, col * subImageSize,
+                        subImageSize, subImageSize);
+            }
+        }
+        span.pause();
+        return sums;
+    }
+
+    /**
+     * sums every 2x2 block of cells of a level into one cell
+     */
+    private long[][] halve(long[][] finer, int resolution) {
+        long[][] sums = new long[finer.length / 2][resolution];
+        for (int row = 0; row < sums.length; row++) {
+            long[] top = finer[2 * row];
+            long[] bottom = finer[2 * row + 1];
+            for (int col = 0; col < resolution; col++) {
+                sums[row][col] = top[2 * col] + top[2 * col + 1] + bottom[2 * col] + bottom[2 * col + 1];
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * drops least recently used levels until the cache fits the budget
+     */
+    private void evict() {
+        Iterator<Map.Entry<Integer, long[][]>> eldest = levels.entrySet().iterator();
+        while (cachedBytes > budgetBytes) {
+            Map.Entry<Integer, long[][]> level = eldest.next();
+            cachedBytes -= sizeOf(level.getValue());
+            estimated.remove(level.getKey());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * drops the cached estimates, once every level can be read exactly
+     */
+    private void dropEstimates() {
+        for (int resolution : estimated) {
+            cachedBytes -= sizeOf(levels.remove(resolution));
+        }
+        estimated.clear();
+    }
+
+    private static long sizeOf(long[][] level) {
+        return level.length == 0 ? 0 : (long) level.length * level[0].length * Long.BYTES;
+    }
+}
@@ -1,5 +1,8 @@
 package image;
 
+import metrics.Stage;
+import metrics.StageMetrics;
+
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -8,13 +11,24 @@ import java.io.IOException;
 
 /**
  * A package-private class of the package image.
+ * The pixels are stored row by row in a single packed ARGB int array, so loading an image does not
+ * allocate an object per pixel, together with a summed-area table of their luminance.
+ * An image may also be a padded view of another image, sharing its buffers: pixels outside the
+ * original bounds are white and are never stored.
  * @author Dan Nirel
  */
 public class Image {
+    private static final int WHITE_RGB = 0xFFFFFFFF;
 
-    private final Color[][] pixelArray;
+    private final int[] pixels;
+    private final LuminanceTable luminance;
     private final int width;
     private final int height;
+    // bounds of the stored pixels inside this image, the rest is white padding
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int rowMargin;
+    private final int colMargin;
 
     /**
      * constracts an image from a path to an image
@@ -22,29 +36,74 @@ public class Image {
      * @throws IOException if there was an error while opening the image like bad path or file
      */
     public Image(String filename) throws IOException {
-        BufferedImage im = ImageIO.read(new File(filename));
-        width = im.getWidth();
-        height = im.getHeight();
+        this(PixelReader.decode(filename));
+    }
 
+    /**
+     * constructs an image from the bytes of an image file held in memory
+     * @param encoded the bytes of a file in a format ImageIO reads
+     * @throws IOException if the bytes are not a supported image
+     */
+    public Image(byte[] encoded) throws IOException {
+        this(PixelReader.decode(encoded));
+    }
 
-        pixelArray = new Color[height][width];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                pixelArray[i][j]=new Color(im.getRGB(j, i));
-            }
-        }
+    /**
+     * reads the number of pixels of an image file held in memory from its header, without decoding it,
+     * so that images too large to decode can be rejected first
+     * @param encoded the bytes of a file in a format ImageIO reads
+     * @return width * height of the image
+     * @throws IOException if the bytes are not a supported image
+     */
+    public static long getPixelCount(byte[] encoded) throws IOException {
+        return PixelReader.countPixels(encoded);
+    }
+
+    /**
+     * constructs an image from pixels decoded beforehand, building its luminance table
+     * @param decoded the decoded pixels, used as is and not copied
+     */
+    public Image(DecodedImage decoded) {
+        this(decoded.pixels, decoded.width, decoded.height);
     }
 
     /**
-     * creates an image from 2d array of colors
-     * @param pixelArray array to turn to image
+     * creates an image from a packed ARGB array, stored row by row.
+     * the array is used as is and not copied.
+     * @param pixels packed ARGB values, of length width * height
      * @param width
      * @param height
      */
-    public Image(Color[][] pixelArray, int width, int height) {
-        this.pixelArray = pixelArray;
+    public Image(int[] pixels, int width, int height) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("pixel buffer does not match image size");
+        }
+        this.pixels = pixels;
+        this.width = this.sourceWidth = width;
+        this.height = this.sourceHeight = height;
+        this.rowMargin = this.colMargin = 0;
+        // the table is what makes every later average cheap, so it is measured as averaging
+        try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+            span.addPixels(pixels.length);
+            this.luminance = new LuminanceTable(pixels, width, height);
+        }
+    }
+
+    /**
+     * creates a white padded view of an image, centered the same way as ImageParser.padImage.
+     * @param source image to pad, must not be a padded view itself
+     * @param width width of the view
+     * @param height height of the view
+     */
+    Image(Image source, int width, int height) {
+        this.pixels = source.pixels;
+        this.luminance = source.luminance;
         this.width = width;
         this.height = height;
+        this.sourceWidth = source.width;
+        this.sourceHeight = source.height;
+        this.rowMargin = (height - source.height) / 2;
+        this.colMargin = (width - source.width) / 2;
     }
 
     /**
@@ -64,13 +123,115 @@ public class Image {
     }
 
     /**
-     * gets the pixel in coordinate (x,y)
+     * gets the packed ARGB value of the pixel in coordinate (x,y)
+     * @param x row of the pixel
+     * @param y column of the pixel
+     * @return the pixel as 0xAARRGGBB
+     */
+    public int getPixelRGB(int x, int y) {
+        int row = x - rowMargin;
+        int col = y - colMargin;
+        if (row < 0 || row >= sourceHeight || col < 0 || col >= sourceWidth) {
+            return WHITE_RGB;
+        }
+        return pixels[row * sourceWidth + col];
+    }
+
+    /**
+     * sums the luminance (0.2126R + 0.7152G + 0.0722B) of all the pixels in a rectangle of the image.
+     * takes constant time, using a table built when the image is created.
+     * @param x top row of the rectangle
+     * @param y left column of the rectangle
+     * @param height number of rows
+     * @param width number of columns
+     * @return the luminance sum, in gray levels between 0 and 255 per pixel
+     */
+    public double getLuminanceSum(int x, int y, int height, int width) {
+        return getFixedLuminanceSum(x, y, height, width) / (double) LuminanceTable.LUMINANCE_SCALE;
+    }
+
+    /**
+     * sums the luminance of a rectangle in fixed point, see LuminanceTable
+     * @return the luminance sum multiplied by LuminanceTable.LUMINANCE_SCALE
+     */
+    long getFixedLuminanceSum(int x, int y, int height, int width) {
+        // clips the rectangle to the stored pixels, everything outside them is white
+        int top = Math.max(x - rowMargin, 0);
+        int bottom = Math.min(x + height - rowMargin, sourceHeight);
+        int left = Math.max(y - colMargin, 0);
+        int right = Math.min(y + width - colMargin, sourceWidth);
+        long sum = 0;
+        long storedArea = 0;
+        if (top < bottom && left < right) {
+            sum = luminance.sum(top, left, bottom - top, right - left);
+            storedArea = (long) (bottom - top) * (right - left);
+        }
+        return sum + ((long) height * width - storedArea) * LuminanceTable.luminance(WHITE_RGB);
+    }
+
+    /**
+     * sums the luminance of the rectangles between the top left corner of the image and a row of points,
+     * in fixed point. the sum of any rectangle is a difference of four such corners, so neighbouring
+     * rectangles can share them
+     * @param x number of rows in the rectangles, up to the height
+     * @param y number of columns in the first rectangle
+     * @param step columns added by every next rectangle
+     * @param count number of rectangles, the last one at most as wide as the image
+     * @param corners array to write the luminance sums to, multiplied by LuminanceTable.LUMINANCE_SCALE
+     */
+    void getFixedLuminanceCorners(int x, int y, int step, int count, long[] corners) {
+        long white = LuminanceTable.luminance(WHITE_RGB);
+        int storedRows = Math.min(Math.max(x - rowMargin, 0), sourceHeight);
+        int i = 0;
+        // left of the stored pixels everything is white
+        for (; i < count && y + i * step <= colMargin; i++) {
+            corners[i] = (long) x * (y + i * step) * white;
+        }
+        for (; i < count && y + i * step - colMargin < sourceWidth; i++) {
+            int col = y + i * step;
+            corners[i] = luminance.corner(storedRows, col - colMargin)
+                    + ((long) x * col - (long) storedRows * (col - colMargin)) * white;
+        }
+        // right of the stored pixels the stored part of the corner stays the same
+        long stored = luminance.corner(storedRows, sourceWidth);
+        for (; i < count; i++) {
+            int col = y + i * step;
+            corners[i] = stored + ((long) x * col - (long) storedRows * sourceWidth) * white;
+        }
+    }
+
+    /**
+     * creates the sums of the cells of this image, padded like ImageParser.padImage
+     * @param resolution number of sub-images per row of the padded image
+     * @param colors true to accumulate the mean colors of the cells as well
+     * @return the sums of all the stored rows
+     */
+    CellSums sumCells(int resolution, boolean colors) {
+        CellSums cells = new CellSums(sourceWidth, sourceHeight, resolution, 1, colors);
+        int coveredHeight = cells.getCoveredHeight();
+        for (int row = 0; row < coveredHeight; row++) {
+            cells.addRow(pixels, row * sourceWidth, row);
+        }
+        return cells;
+    }
+
+    /**
+     * gets the pixel in coordinate (x,y).
+     * allocates a new Color, prefer getPixelRGB in loops.
      * @param x
      * @param y
      * @return
      */
     public Color getPixel(int x, int y) {
-        return pixelArray[x][y];
+        return new Color(getPixelRGB(x, y));
+    }
+
+    /**
+     * checks whether this image is a padded view of a smaller image
+     * @return true if some of the pixels are padding
+     */
+    boolean isPadded() {
+        return width != sourceWidth || height != sourceHeight;
     }
 
     /**
@@ -78,14 +239,18 @@ public class Image {
      * @param fileName path to save image
      */
     public void saveImage(String fileName){
-        // Initialize BufferedImage, assuming Color[][] is already properly populated.
-        BufferedImage bufferedImage = new BufferedImage(pixelArray[0].length, pixelArray.length,
-                BufferedImage.TYPE_INT_RGB);
-        // Set each pixel of the BufferedImage to the color from the Color[][].
-        for (int x = 0; x < pixelArray.length; x++) {
-            for (int y = 0; y < pixelArray[x].length; y++) {
-                bufferedImage.setRGB(y, x, pixelArray[x][y].getRGB());
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (isPadded()) {
+            int[] row = new int[width];
+            for (int x = 0; x < height; x++) {
+                for (int y = 0; y < width; y++) {
+                    row[y] = getPixelRGB(x, y);
+                }
+                bufferedImage.setRGB(0, x, width, 1, row, 0, width);
             }
+        } else {
+            // copies all rows at once from the packed buffer
+            bufferedImage.setRGB(0, 0, width, height, pixels, 0, width);
         }
         File outputfile = new File(fileName+".jpeg");
         try {
@@ -1,6 +1,7 @@
 package image;
 
-import java.awt.*;
+import metrics.Stage;
+import metrics.StageMetrics;
 
 /**
  * Utility class for parsing and manipulating images.
@@ -11,31 +12,22 @@ public class ImageParser {
 
     /**
      * Pads the given image to make its dimensions powers of 2.
+     * The padding is virtual: the returned image shares the pixels of the original and reports white
+     * outside of them, so no padded copy is stored.
      *
      * @param image the original image to pad
-     * @return the padded image
+     * @return the padded image, or the image itself if it is already padded
      */
     public static Image padImage(Image image) {
-        int newHeight = getPaddedImageSize(image)[0];
-        int newWidth = getPaddedImageSize(image)[1];
-
-        int heightMargin = (newHeight - image.getHeight()) / 2;
-        int widthMargin = (newWidth - image.getWidth()) / 2;
-
-        Color[][] colors = new Color[newHeight][newWidth];
-
-        for (int row = 0; row < newHeight; row++) {
-            for (int col = 0; col < newWidth; col++) {
-                if (row < heightMargin || row >= image.getHeight() + heightMargin ||
-                        col < widthMargin || col >= image.getWidth() + widthMargin) {
-                    colors[row][col] = Color.WHITE;
-                } else {
-                    colors[row][col] = image.getPixel(row - heightMargin, col - widthMargin);
-                }
+        try (StageMetrics.Span span = StageMetrics.start(Stage.PAD)) {
+            int newHeight = getPaddedImageSize(image)[0];
+            int newWidth = getPaddedImageSize(image)[1];
+            if (newHeight == image.getHeight() && newWidth == image.getWidth()) {
+                return image;
             }
+            span.addPixels((long) newHeight * newWidth - (long) image.getHeight() * image.getWidth());
+            return new Image(image, newWidth, newHeight);
         }
-
-        return new Image(colors, newWidth, newHeight);
     }
 
     /**
@@ -45,46 +37,180 @@ public class ImageParser {
      * @return an array containing the padded height ([0]) and width ([1]) of the image
      */
     public static int[] getPaddedImageSize(Image image){
-        int newHeight = (int) Math.pow(2, (int) Math.ceil(Math.log(image.getHeight()) / Math.log(2)));
-        int newWidth = (int) Math.pow(2, (int) Math.ceil(Math.log(image.getWidth()) / Math.log(2)));
-        return new int[]{newHeight, newWidth};
+        return new int[]{getPaddedSize(image.getHeight()), getPaddedSize(image.getWidth())};
+    }
+
+    /**
+     * rounds one dimension of an image up to a power of 2
+     * @param size height or width of the image
+     * @return the padded size
+     */
+    public static int getPaddedSize(int size) {
+        return (int) Math.pow(2, (int) Math.ceil(Math.log(size) / Math.log(2)));
     }
 
     /**
      * Divides the given image into smaller sub-images and calculates the average grayscale value
-     * for each sub-image.
+     * for each sub-image. Each sub-image takes constant time, using the luminance table of the image.
      *
      * @param image the image to divide
      * @param resolution the number of sub-images per dimension
      * @return a 2D array containing the grayscale values of the sub-images
      */
     public static double[][] extractSubImageGrayscale(Image image, int resolution) {
-        double[][] subImagesGrayScale = new double[resolution][resolution];
-        int subImageSize = image.getWidth() / resolution;
+        try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+            double[][] subImagesGrayScale = new double[resolution][resolution];
+            int rows = getSubImageRows(image, resolution);
+            extractSubImageGrayscale(image, resolution, subImagesGrayScale, 0, rows);
+            span.addPixels((long) rows * (image.getWidth() / resolution) * image.getWidth());
+            return subImagesGrayScale;
+        }
+    }
 
-        for (int startRow = 0; startRow < image.getHeight(); startRow += subImageSize) {
-            for (int startCol = 0; startCol < image.getWidth(); startCol += subImageSize) {
-                subImagesGrayScale[startRow / subImageSize][startCol / subImageSize] =
-                        getSubImageGrayScale(image, subImageSize, startRow, startCol);
+    /**
+     * Calculates the average grayscale values of a band of sub-image rows only, so that separate
+     * bands can be filled concurrently.
+     *
+     * @param image the image to divide
+     * @param resolution the number of sub-images per row
+     * @param target array of at least toRow rows of resolution values each, to write the values into
+     * @param fromRow first sub-image row to calculate, inclusive
+     * @param toRow last sub-image row to calculate, exclusive
+     */
+    public static void extractSubImageGrayscale(Image image, int resolution, double[][] target,
+                                                int fromRow, int toRow) {
+        int subImageSize = image.getWidth() / resolution;
+        for (int row = fromRow; row < toRow; row++) {
+            for (int col = 0; col < resolution; col++) {
+                target[row][col] =
+                        getSubImageGrayScale(image, subImageSize, row * subImageSize, col * subImageSize);
             }
         }
+    }
 
-        return subImagesGrayScale;
+    /**
+     * Calculates the average grayscale value and the average color of each sub-image in a single pass
+     * over the pixels of the image. The grayscale values are the ones of extractSubImageGrayscale.
+     * An image that is not padded yet is divided as if it was padded by padImage.
+     *
+     * @param image the image to divide
+     * @param resolution the number of sub-images per row, a power of 2
+     * @param grayscale array of at least resolution rows of resolution values each, to write the
+     *                  grayscale values into
+     * @param colors array of at least resolution rows of resolution values each, to write the colors
+     *               into as packed 0xRRGGBB values
+     */
+    public static void extractSubImageColors(Image image, int resolution, double[][] grayscale, int[][] colors) {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+            CellSums cells = image.sumCells(resolution, true);
+            long[] sums = cells.getSums();
+            int[] cellColors = cells.getColors();
+            int subImageSize = cells.getSubImageSize();
+            for (int row = 0; row < cells.getRows(); row++) {
+                for (int col = 0; col < resolution; col++) {
+                    grayscale[row][col] = toGrayscale(sums[row * resolution + col], subImageSize);
+                    colors[row][col] = cellColors[row * resolution + col];
+                }
+            }
+            span.addPixels((long) cells.getRows() * subImageSize * resolution * subImageSize);
+        }
     }
 
+    /**
+     * Calculates how many rows of sub-images fit in the image when there are resolution sub-images
+     * in every row.
+     *
+     * @param image the image to divide
+     * @param resolution the number of sub-images per row
+     * @return the number of sub-image rows, at most resolution
+     */
+    public static int getSubImageRows(Image image, int resolution) {
+        int subImageSize = image.getWidth() / resolution;
+        return Math.min(resolution, image.getHeight() / subImageSize);
+    }
 
-    private static double getSubImageGrayScale(Image image, int subImageSize, int startRow, int startCol) {
-        double totalGrayness = 0;
-        for (int row = startRow; row < startRow + subImageSize; row++) {
-            for (int col = startCol; col < startCol + subImageSize; col++) {
-                totalGrayness += getPixelGrayScale(image.getPixel(row, col));
+    /**
+     * Binarizes the sub-images of a band of rows that have enough contrast to gridSize X gridSize bitmaps,
+     * for matching them against glyph shapes. Every sub-image is split into gridSize X gridSize equal
+     * blocks, and the bit of a block is set when the block is at least as bright as the whole sub-image.
+     * The contrast of a sub-image is the grayscale difference between its brightest and darkest blocks.
+     * Each block takes constant time, using the luminance table of the image.
+     *
+     * @param image the padded image
+     * @param resolution the number of sub-images per row
+     * @param gridSize side of the bitmaps, a power of 2 not larger than a sub-image
+     * @param minContrast sub-images of a lower contrast, between 0 and 1, get no bitmap
+     * @param target array of at least toRow rows of resolution bitmaps each. every bitmap is set to
+     *               gridSize * gridSize bits, row by row with the lowest bit first, or to null.
+     * @param fromRow first sub-image row to binarize, inclusive
+     * @param toRow last sub-image row to binarize, exclusive
+     */
+    public static void extractSubImageBitmaps(Image image, int resolution, int gridSize, double minContrast,
+                                              long[][][] target, int fromRow, int toRow) {
+        int subImageSize = image.getWidth() / resolution;
+        int blockSize = subImageSize / gridSize;
+        int blocks = gridSize * gridSize;
+        // the corners of every block of a sub-image row, shared by neighbouring blocks and sub-images
+        long[][] corners = new long[gridSize + 1][resolution * gridSize + 1];
+        long[] bitmap = new long[(blocks + Long.SIZE - 1) / Long.SIZE];
+        // the smallest spread between the brightest and darkest blocks that reaches minContrast
+        long minSpread = (long) Math.ceil(minContrast * blockSize * blockSize * MAX_GRAY_VAL
+                * LuminanceTable.LUMINANCE_SCALE);
+        for (int row = fromRow; row < toRow; row++) {
+            for (int y = 0; y <= gridSize; y++) {
+                image.getFixedLuminanceCorners(row * subImageSize + y * blockSize, 0, blockSize,
+                        resolution * gridSize + 1, corners[y]);
+            }
+            for (int col = 0; col < resolution; col++) {
+                int left = col * gridSize;
+                long total = corners[gridSize][left + gridSize] - corners[gridSize][left]
+                        - corners[0][left + gridSize] + corners[0][left];
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                long word = 0;
+                for (int y = 0; y < gridSize; y++) {
+                    long[] top = corners[y];
+                    long[] bottom = corners[y + 1];
+                    long topLeft = top[left];
+                    long bottomLeft = bottom[left];
+                    for (int x = 0; x < gridSize; x++) {
+                        long topRight = top[left + x + 1];
+                        long bottomRight = bottom[left + x + 1];
+                        long block = bottomRight - bottomLeft - topRight + topLeft;
+                        topLeft = topRight;
+                        bottomLeft = bottomRight;
+                        // sets the bit when block >= total / blocks, without the rounding of the division
+                        word |= (~(block * blocks - total) >>> 63) << ((y * gridSize + x) % Long.SIZE);
+                        min = Math.min(min, block);
+                        max = Math.max(max, block);
+                    }
+                    // a row of blocks never straddles two words, as gridSize is a power of 2
+                    if ((y + 1) * gridSize % Long.SIZE == 0) {
+                        bitmap[(y + 1) * gridSize / Long.SIZE - 1] = word;
+                        word = 0;
+                    }
+                }
+                if (blocks % Long.SIZE != 0) {
+                    bitmap[blocks / Long.SIZE] = word;
+                }
+                target[row][col] = max - min >= minSpread ? bitmap.clone() : null;
             }
         }
-        return totalGrayness / (Math.pow(subImageSize, 2) * MAX_GRAY_VAL);
     }
 
-    private static double getPixelGrayScale(Color color) {
-        return color.getRed() * 0.2126 + color.getGreen() * 0.7152
-                + color.getBlue() * 0.0722;
+    private static double getSubImageGrayScale(Image image, int subImageSize, int startRow, int startCol) {
+        return toGrayscale(image.getFixedLuminanceSum(startRow, startCol, subImageSize, subImageSize),
+                subImageSize);
+    }
+
+    /**
+     * turns the fixed point luminance sum of a sub-image into its average grayscale value
+     * @param fixedLuminanceSum luminance sum multiplied by LuminanceTable.LUMINANCE_SCALE
+     * @param subImageSize side of the sub-image
+     * @return average grayscale between 0 and 1
+     */
+    static double toGrayscale(long fixedLuminanceSum, int subImageSize) {
+        double totalGrayness = fixedLuminanceSum / (double) LuminanceTable.LUMINANCE_SCALE;
+        return totalGrayness / (Math.pow(subImageSize, 2) * MAX_GRAY_VAL);
     }
 }
@@ -0,0 +1,72 @@
+package image;
+
+import java.util.logging.Logger;
+
+/**
+ * Package-private per-row luminance kernels. The shared instance uses the Vector API when the
+ * jdk.incubator.vector module is present (run with --add-modules jdk.incubator.vector), and the plain
+ * scalar loops otherwise or when the system property ascii_art.vector is false.
+ * Both kernels work on the same fixed point integer luminance, so their results are identical: the
+ * epsilon between the vector and scalar paths is 0.
+ */
+abstract class LuminanceKernel {
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL = "image.VectorLuminanceKernel";
+    private static final String VECTOR_PROPERTY = "ascii_art.vector";
+
+    /**
+     * the kernel of this process
+     */
+    static final LuminanceKernel INSTANCE = create();
+
+    /**
+     * computes the fixed point luminance of a run of packed pixels
+     * @param pixels packed ARGB pixels
+     * @param from index of the first pixel
+     * @param luminance array to write the luminance of the pixels to, from index 0
+     * @param length number of pixels
+     */
+    abstract void luminance(int[] pixels, int from, int[] luminance, int length);
+
+    /**
+     * sums a run of fixed point luminance values
+     * @param luminance values computed by luminance()
+     * @param from index of the first value
+     * @param length number of values
+     * @return their sum
+     */
+    abstract long sum(int[] luminance, int from, int length);
+
+    private static LuminanceKernel create() {
+        if (Boolean.parseBoolean(System.getProperty(VECTOR_PROPERTY, "true"))
+                && ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            try {
+                return (LuminanceKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                Logger.getGlobal().warning("Vector luminance kernel unavailable, using the scalar one: " + e);
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * the fallback kernel, plain loops over LuminanceTable.luminance
+     */
+    static class Scalar extends LuminanceKernel {
+        @Override
+        void luminance(int[] pixels, int from, int[] luminance, int length) {
+            for (int i = 0; i < length; i++) {
+                luminance[i] = LuminanceTable.luminance(pixels[from + i]);
+            }
+        }
+
+        @Override
+        long sum(int[] luminance, int from, int length) {
+            long sum = 0;
+            for (int i = from; i < from + length; i++) {
+                sum += luminance[i];
+            }
+            return sum;
+        }
+    }
+}
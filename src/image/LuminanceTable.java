@@ -0,0 +1,77 @@
+package image;
+
+/**
+ * Package-private summed-area table of pixel luminance.
+ * Entry (r, c) holds the luminance sum of all pixels above and to the left of (r, c), so the sum of any
+ * rectangle costs four lookups. Luminance is kept in fixed point with the weights scaled by
+ * LUMINANCE_SCALE, which keeps the sums exact.
+ * The luminance of each row is computed by the LuminanceKernel, vectorized when the Vector API is
+ * available, and only the running sums are added one pixel at a time.
+ */
+class LuminanceTable {
+    /**
+     * the factor the luminance weights are multiplied by
+     */
+    static final int LUMINANCE_SCALE = 10000;
+    static final int RED_WEIGHT = 2126;
+    static final int GREEN_WEIGHT = 7152;
+    static final int BLUE_WEIGHT = 722;
+
+    private final long[] sums;
+    private final int stride;
+
+    /**
+     * builds the table of a packed ARGB buffer in a single pass.
+     * @param pixels packed ARGB values stored row by row
+     * @param width image width
+     * @param height image height
+     */
+    LuminanceTable(int[] pixels, int width, int height) {
+        stride = width + 1;
+        sums = new long[stride * (height + 1)];
+        int[] rowLuminance = new int[width];
+        for (int row = 0; row < height; row++) {
+            LuminanceKernel.INSTANCE.luminance(pixels, row * width, rowLuminance, width);
+            long rowSum = 0;
+            int out = (row + 1) * stride + 1;
+            for (int col = 0; col < width; col++) {
+                rowSum += rowLuminance[col];
+                sums[out + col] = sums[out + col - stride] + rowSum;
+            }
+        }
+    }
+
+    /**
+     * gets the fixed point luminance of a single pixel
+     * @param rgb packed pixel
+     * @return luminance multiplied by LUMINANCE_SCALE
+     */
+    static int luminance(int rgb) {
+        return ((rgb >> 16) & 0xFF) * RED_WEIGHT + ((rgb >> 8) & 0xFF) * GREEN_WEIGHT
+                + (rgb & 0xFF) * BLUE_WEIGHT;
+    }
+
+    /**
+     * sums the luminance of the rectangle between the top left corner of the image and a point
+     * @param row number of rows in the rectangle, up to the image height
+     * @param col number of columns in the rectangle, up to the image width
+     * @return luminance sum multiplied by LUMINANCE_SCALE
+     */
+    long corner(int row, int col) {
+        return sums[row * stride + col];
+    }
+
+    /**
+     * sums the luminance of a rectangle, which must lie inside the image
+     * @param row top row
+     * @param col left column
+     * @param height number of rows
+     * @param width number of columns
+     * @return luminance sum multiplied by LUMINANCE_SCALE
+     */
+    long sum(int row, int col, int height, int width) {
+        int top = row * stride + col;
+        int bottom = (row + height) * stride + col;
+        return sums[bottom + width] - sums[bottom] - sums[top + width] + sums[top];
+    }
+}
@@ -0,0 +1,159 @@
+package image;
+
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Package-private helper that copies the pixels of a BufferedImage into a packed ARGB array.
+ * Common raster layouts are read straight from their backing DataBuffer, anything else goes through
+ * the bulk getRGB row API.
+ */
+class PixelReader {
+    private static final int OPAQUE = 0xFF000000;
+
+    private PixelReader() {
+    }
+
+    /**
+     * decodes an image file into packed pixels, measured as the DECODE stage
+     * @param filename path to image
+     * @return the decoded pixels
+     * @throws IOException if the file cannot be read or is not a supported image
+     */
+    static DecodedImage decode(String filename) throws IOException {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.DECODE)) {
+            File file = new File(filename);
+            BufferedImage im = ImageIO.read(file);
+            if (im == null) {
+                throw new IOException("unsupported image format: " + filename);
+            }
+            span.addBytes(file.length());
+            span.addPixels((long) im.getWidth() * im.getHeight());
+            return new DecodedImage(readPixels(im), im.getWidth(), im.getHeight());
+        }
+    }
+
+    /**
+     * decodes an encoded image held in memory into packed pixels, measured as the DECODE stage
+     * @param encoded the bytes of an image file
+     * @return the decoded pixels
+     * @throws IOException if the bytes are not a supported image
+     */
+    static DecodedImage decode(byte[] encoded) throws IOException {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.DECODE)) {
+            BufferedImage im = ImageIO.read(new ByteArrayInputStream(encoded));
+            if (im == null) {
+                throw new IOException("unsupported image format");
+            }
+            span.addBytes(encoded.length);
+            span.addPixels((long) im.getWidth() * im.getHeight());
+            return new DecodedImage(readPixels(im), im.getWidth(), im.getHeight());
+        }
+    }
+
+    /**
+     * reads the size of an encoded image held in memory from its header, without decoding its pixels
+     * @param encoded the bytes of an image file
+     * @return width * height of the image
+     * @throws IOException if the bytes are not a supported image
+     */
+    static long countPixels(byte[] encoded) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * reads all pixels of an image row by row.
+     * @param im image to read
+     * @return packed ARGB values of length width * height
+     */
+    static int[] readPixels(BufferedImage im) {
+        int[] pixels = new int[im.getWidth() * im.getHeight()];
+        Raster raster = im.getRaster();
+        // a child raster or a shared buffer keeps the generic path, only plain rasters are read directly
+        if (raster.getParent() == null && raster.getDataBuffer().getNumBanks() == 1) {
+            switch (im.getType()) {
+                case BufferedImage.TYPE_3BYTE_BGR:
+                    readThreeByteBgr(raster, pixels);
+                    return pixels;
+                case BufferedImage.TYPE_INT_RGB:
+                    readIntRgb(raster, pixels, OPAQUE);
+                    return pixels;
+                case BufferedImage.TYPE_INT_ARGB:
+                    readIntRgb(raster, pixels, 0);
+                    return pixels;
+                default:
+                    break;
+            }
+        }
+        readGeneric(im, pixels);
+        return pixels;
+    }
+
+    private static void readThreeByteBgr(Raster raster, int[] pixels) {
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int[] bandOffsets = model.getBandOffsets();
+        int redOffset = bandOffsets[0], greenOffset = bandOffsets[1], blueOffset = bandOffsets[2];
+        int pixelStride = model.getPixelStride();
+        int scanlineStride = model.getScanlineStride();
+        int width = raster.getWidth();
+        int out = 0;
+        for (int row = 0; row < raster.getHeight(); row++) {
+            int in = raster.getDataBuffer().getOffset() + row * scanlineStride;
+            for (int col = 0; col < width; col++, in += pixelStride) {
+                pixels[out++] = OPAQUE | (data[in + redOffset] & 0xFF) << 16
+                        | (data[in + greenOffset] & 0xFF) << 8 | (data[in + blueOffset] & 0xFF);
+            }
+        }
+    }
+
+    private static void readIntRgb(Raster raster, int[] pixels, int alphaMask) {
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int scanlineStride = model.getScanlineStride();
+        int width = raster.getWidth();
+        for (int row = 0; row < raster.getHeight(); row++) {
+            int in = raster.getDataBuffer().getOffset() + row * scanlineStride;
+            System.arraycopy(data, in, pixels, row * width, width);
+        }
+        if (alphaMask != 0) {
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] |= alphaMask;
+            }
+        }
+    }
+
+    private static void readGeneric(BufferedImage im, int[] pixels) {
+        int width = im.getWidth();
+        for (int row = 0; row < im.getHeight(); row++) {
+            // one call per row lets the color model convert a whole scanline at once
+            im.getRGB(0, row, width, 1, pixels, row * width, width);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package image;
+
+import metrics.Stage;
+import metrics.StageMetrics;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * An image file that is never decoded whole. Its sub-image grayscale grids are computed by decoding one
+ * band of rows at a time through ImageReadParam.setSourceRegion, folding the band into the cell sums and
+ * decoding the next band into the same buffer, so the memory taken is one band plus the grid.
+ * Padding is virtual, and the grids are exactly the ones of the padded Image of the same file.
+ * <p>
+ * Low resolution grids can also be decoded with source sub-sampling: only every n-th pixel of every n-th
+ * row is decoded and the average of each cell is estimated from its samples. getSubsampling picks the
+ * coarsest sub-sampling whose error stays within a tolerance.
+ * <p>
+ * Codecs that cannot seek to a row, like JPEG and PNG, decode the file from its start up to every band,
+ * so the bands are made as tall as the band budget allows.
+ */
+public class TiledImage {
+    /** default memory of one band */
+    public static final long DEFAULT_BAND_BYTES = 64L << 20;
+    /** default tolerance of sub-sampled grids, as a fraction of the gray range */
+    public static final double DEFAULT_TOLERANCE = 1.0 / 64;
+
+    private final String filename;
+    private final long bandBytes;
+    private final int width;
+    private final int height;
+
+    /**
+     * Opens an image file with the default band budget. Only the header of the file is read.
+     *
+     * @param filename the image file
+     * @throws IOException if the file cannot be read or its format is unsupported
+     */
+    public TiledImage(String filename) throws IOException {
+        this(filename, DEFAULT_BAND_BYTES);
+    }
+
+    /**
+     * Opens an image file. Only the header of the file is read.
+     *
+     * @param filename  the image file
+     * @param bandBytes memory of the decoded band, at least one row is always decoded
+     * @throws IOException if the file cannot be read or its format is unsupported
+     */
+    public TiledImage(String filename, long bandBytes) throws IOException {
+        this.filename = filename;
+        this.bandBytes = bandBytes;
+        try (ImageInputStream in = open(filename)) {
+            ImageReader reader = reader(in);
+            try {
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Gets the width of the image before padding
+     *
+     * @return width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image before padding
+     *
+     * @return height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * the file of the image
+     */
+    String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Gets the width of the virtually padded image
+     *
+     * @return the width rounded up to a power of 2
+     */
+    public int getPaddedWidth() {
+        return ImageParser.getPaddedSize(width);
+    }
+
+    /**
+     * Gets the height of the virtually padded image
+     *
+     * @return the height rounded up to a power of 2
+     */
+    public int getPaddedHeight() {
+        return ImageParser.getPaddedSize(height);
+    }
+
+    /**
+     * Calculates the average grayscale value of each sub-image of the padded image, like
+     * ImageParser.extractSubImageGrayscale of the padded Image of the file.
+     *
+     * @param resolution the number of sub-images per row, a power of 2 up to the padded width
+     * @return a resolution X resolution array of grayscale values, rows past the image are 0
+     * @throws IOException if the file cannot be decoded
+     */
+    public double[][] extractSubImageGrayscale(int resolution) throws IOException {
+        return extractSubImageGrayscale(resolution, 0);
+    }
+
+    /**
+     * Calculates the average grayscale value of each sub-image of the padded image from the coarsest
+     * sub-sampling of the file that keeps the averages within a tolerance, see getSubsampling.
+     *
+     * @param resolution the number of sub-images per row, a power of 2 up to the padded width
+     * @param tolerance  allowed error of an average, between 0 and 1, 0 for the exact averages
+     * @return a resolution X resolution array of grayscale values, rows past the image are 0
+     * @throws IOException if the file cannot be decoded
+     */
+    public double[][] extractSubImageGrayscale(int resolution, double tolerance) throws IOException {
+        long[][] sums = getFixedLuminanceSums(resolution, getSubsampling(resolution, tolerance));
+        int subImageSize = getPaddedWidth() / resolution;
+        double[][] grayscale = new double[resolution][resolution];
+        for (int row = 0; row < sums.length; row++) {
+            for (int col = 0; col < resolution; col++) {
+                grayscale[row][col] = ImageParser.toGrayscale(sums[row][col], subImageSize);
+            }
+        }
+        return grayscale;
+    }
+
+    /**
+     * Picks the coarsest sub-sampling that estimates the averages of a grid within a tolerance.
+     * With n samples in a cell, the standard error of its average is at most 0.5 / sqrt(n), the largest
+     * deviation of values between 0 and 1, so sampling every s-th pixel of every s-th row is allowed while
+     * 0.5 * s / subImageSize stays within the tolerance. Images with fine regular patterns can alias and
+     * deviate more than that, and those should be read with tolerance 0.
+     *
+     * @param resolution the number of sub-images per row, a power of 2 up to the padded width
+     * @param tolerance  allowed standard error of an average, between 0 and 1
+     * @return the sub-sampling step, a power of 2 not larger than a sub-image, 1 to read every pixel
+     */
+    public int getSubsampling(int resolution, double tolerance) {
+        int subImageSize = getPaddedWidth() / resolution;
+        double maxStep = Math.min(subImageSize, 2 * tolerance * subImageSize);
+        return maxStep < 2 ? 1 : Integer.highestOneBit((int) maxStep);
+    }
+
+    /**
+     * decodes the file band by band into the fixed point luminance sums of its cells
+     * @param resolution number of sub-images per row
+     * @param subsampling distance between the decoded pixels, 1 for the exact sums
+     * @return one array of resolution sums for every sub-image row
+     */
+    long[][] getFixedLuminanceSums(int resolution, int subsampling) throws IOException {
+        CellSums cells = new CellSums(width, height, resolution, subsampling);
+        int coveredHeight = cells.getCoveredHeight();
+        int sampledWidth = cells.getSampledWidth();
+        // a band holds a whole number of sampled rows, each one sampledWidth pixels wide
+        long maxSampledRows = bandBytes / ((long) sampledWidth * Integer.BYTES);
+        int bandRows = (int) Math.max(subsampling, Math.min(coveredHeight, maxSampledRows * subsampling));
+        bandRows -= bandRows % subsampling;
+        int[] rowPixels = new int[sampledWidth];
+        try (ImageInputStream in = open(filename)) {
+            ImageReader reader = reader(in);
+            try {
+                BufferedImage band = null;
+                for (int top = 0; top < coveredHeight; top += bandRows) {
+                    int rows = Math.min(bandRows, coveredHeight - top);
+                    band = readBand(reader, band, top, rows, subsampling);
+                    try (StageMetrics.Span span = StageMetrics.start(Stage.AVERAGE)) {
+                        int y = 0;
+                        for (; y < band.getHeight() && y * subsampling < rows; y++) {
+                            band.getRGB(0, y, sampledWidth, 1, rowPixels, 0, sampledWidth);
+                            cells.addRow(rowPixels, top + y * subsampling);
+                        }
+                        span.addPixels((long) y * sampledWidth);
+                    }
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        long[] flat = cells.getSums();
+        long[][] sums = new long[cells.getRows()][resolution];
+        for (int row = 0; row < sums.length; row++) {
+            System.arraycopy(flat, row * resolution, sums[row], 0, resolution);
+        }
+        return sums;
+    }
+
+    /**
+     * decodes rows [top, top + rows) of the image, every subsampling-th pixel of every subsampling-th row,
+     * into the previous band when it has the same size
+     */
+    private BufferedImage readBand(ImageReader reader, BufferedImage previous, int top, int rows,
+                                   int subsampling) throws IOException {
+        try (StageMetrics.Span span = StageMetrics.start(Stage.DECODE)) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, top, width, rows));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            int sampledRows = (rows + subsampling - 1) / subsampling;
+            if (previous != null && previous.getHeight() == sampledRows) {
+                param.setDestination(previous);
+            }
+            BufferedImage band = reader.read(0, param);
+            span.addPixels((long) band.getWidth() * band.getHeight()); // only the sampled pixels are decoded
+            return band;
+        }
+    }
+
+    private static ImageInputStream open(String filename) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(new File(filename));
+        if (in == null) {
+            throw new IOException("cannot read " + filename);
+        }
+        return in;
+    }
+
+    /**
+     * a reader of the first image in the stream, which must be closed by the caller
+     */
+    private static ImageReader reader(ImageInputStream in) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            in.close();
+            throw new IOException("unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+}
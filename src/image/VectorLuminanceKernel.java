@@ -0,0 +1,55 @@
+package image;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Package-private luminance kernel on the Vector API. Pixels are unpacked lane-wise with shifts and
+ * masks and weighted with the integer weights of LuminanceTable, so the results equal the scalar
+ * kernel exactly. Only loaded by LuminanceKernel when the jdk.incubator.vector module is present.
+ */
+class VectorLuminanceKernel extends LuminanceKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // a lane sums at most this many luminance values (each below 2^22) before it is widened to a long
+    private static final int MAX_LANE_VALUES = 256;
+
+    @Override
+    void luminance(int[] pixels, int from, int[] luminance, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector rgb = IntVector.fromArray(SPECIES, pixels, from + i);
+            IntVector red = rgb.lanewise(VectorOperators.LSHR, 16).lanewise(VectorOperators.AND, 0xFF);
+            IntVector green = rgb.lanewise(VectorOperators.LSHR, 8).lanewise(VectorOperators.AND, 0xFF);
+            IntVector blue = rgb.lanewise(VectorOperators.AND, 0xFF);
+            red.mul(LuminanceTable.RED_WEIGHT)
+                    .add(green.mul(LuminanceTable.GREEN_WEIGHT))
+                    .add(blue.mul(LuminanceTable.BLUE_WEIGHT))
+                    .intoArray(luminance, i);
+        }
+        for (; i < length; i++) {
+            luminance[i] = LuminanceTable.luminance(pixels[from + i]);
+        }
+    }
+
+    @Override
+    long sum(int[] luminance, int from, int length) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        long sum = 0;
+        int i = 0;
+        while (i < bound) {
+            int chunkEnd = Math.min(bound, i + MAX_LANE_VALUES * lanes);
+            IntVector lanesSum = IntVector.zero(SPECIES);
+            for (; i < chunkEnd; i += lanes) {
+                lanesSum = lanesSum.add(IntVector.fromArray(SPECIES, luminance, from + i));
+            }
+            sum += lanesSum.reduceLanesToLong(VectorOperators.ADD);
+        }
+        for (; i < length; i++) {
+            sum += luminance[from + i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,81 @@
+package image_char_matching;
+
+import java.util.Arrays;
+
+/**
+ * Package-private immutable snapshot of a charset, compiled for fast brightness lookups.
+ * The range [0,1) is split into equal buckets. A bucket whose whole range maps to the same char stores
+ * that char, so most lookups are a multiply and an array index. Buckets that contain a boundary between
+ * two chars are resolved by a binary search over the sorted brightness values, so the result is always
+ * the same as a nearest-brightness search.
+ */
+class BrightnessTable {
+    private static final int BUCKETS = 4096; // a power of two, so brightness * BUCKETS is exact
+    private static final int MIXED_BUCKET = -1;
+
+    private final double[] brightnesses; // sorted char brightness values
+    private final char[] chars; // lowest ASCII char of each brightness value
+    private final double minBrightness;
+    private final double maxBrightness;
+    private final int[] buckets;
+
+    /**
+     * compiles a table.
+     * @param brightnesses sorted distinct brightness values, must not be empty
+     * @param chars the char to return for each brightness value
+     * @param minBrightness brightness that 0 is mapped to
+     * @param maxBrightness brightness that 1 is mapped to
+     */
+    BrightnessTable(double[] brightnesses, char[] chars, double minBrightness, double maxBrightness) {
+        this.brightnesses = brightnesses;
+        this.chars = chars;
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+        buckets = new int[BUCKETS];
+        // matching is monotonic in brightness, so equal chars at both ends of a bucket cover all of it
+        int low = findCharIndex(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            int high = findCharIndex(Math.nextDown((i + 1) / (double) BUCKETS));
+            buckets[i] = (low == high) ? chars[low] : MIXED_BUCKET;
+            low = (i + 1 < BUCKETS) ? findCharIndex((i + 1) / (double) BUCKETS) : high;
+        }
+    }
+
+    /**
+     * finds the char with the closest brightness to a given value.
+     * @param brightness value between 0 and 1
+     * @return the char of the closest brightness, lowest in ASCII order on ties
+     */
+    char getChar(double brightness) {
+        if (brightness >= 0 && brightness < 1) {
+            int bucket = buckets[(int) (brightness * BUCKETS)];
+            if (bucket != MIXED_BUCKET) {
+                return (char) bucket;
+            }
+        }
+        return chars[findCharIndex(brightness)];
+    }
+
+    /**
+     * finds the index of the brightness value closest to the corrected brightness, preferring the lower
+     * value on ties.
+     */
+    private int findCharIndex(double brightness) {
+        double corrected = brightness * (maxBrightness - minBrightness) + minBrightness;
+        int index = Arrays.binarySearch(brightnesses, corrected);
+        if (index >= 0) {
+            return index;
+        }
+        int ceiling = -index - 1;
+        int floor = ceiling - 1;
+        if (floor < 0) {
+            return ceiling;
+        }
+        if (ceiling == brightnesses.length) {
+            return floor;
+        }
+        double floorDiff = Math.abs(corrected - brightnesses[floor]);
+        double ceilingDiff = Math.abs(corrected - brightnesses[ceiling]);
+        return (floorDiff <= ceilingDiff) ? floor : ceiling;
+    }
+}
@@ -0,0 +1,274 @@
+package image_char_matching;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+/**
+ * An atlas of the rendered printable ASCII glyphs in one font and pixel resolution, stored in a compact
+ * binary file. Loading an existing atlas does not need AWT at all, so a process with an atlas never
+ * initializes fonts or renders glyphs for printable chars.
+ * The file holds a header (magic, version, the renderer that drew the glyphs, font name, resolution,
+ * first char, glyph count) followed by the brightness of every glyph and its bitmap packed to one bit
+ * per pixel, row by row. The renderer names the JDK and platform, whose font rasterizers differ, so an
+ * atlas drawn by another one is rendered again rather than trusted.
+ * The atlas of the default font is read from the path in the system property
+ * {@value #ATLAS_PATH_PROPERTY}, or from a file named after the font in the per-user cache directory,
+ * $XDG_CACHE_HOME/ascii_art or ~/.cache/ascii_art. It is generated and saved there on the first run if
+ * it is missing or stale.
+ */
+public class GlyphAtlas {
+    /**
+     * system property holding the path of the default atlas file
+     */
+    public static final String ATLAS_PATH_PROPERTY = "ascii_art.glyphAtlas";
+    private static final int MAGIC = 0x474C5941; // "GLYA"
+    private static final int VERSION = 2;
+    private static final String CACHE_DIR = "ascii_art";
+    // the JDK and platform the glyphs are rendered by, an atlas of another renderer is stale
+    private static final String RENDERER = System.getProperty("java.vendor") + " "
+            + System.getProperty("java.runtime.version") + " " + System.getProperty("os.name") + " "
+            + System.getProperty("os.arch");
+    private static final char FIRST_CHAR = 32;
+    private static final char LAST_CHAR = 126;
+
+    private final String renderer;
+    private final String fontName;
+    private final int pixelResolution;
+    private final double[] brightness;
+    private final long[][] bitmaps;
+
+    private GlyphAtlas(String renderer, String fontName, int pixelResolution, double[] brightness,
+                       long[][] bitmaps) {
+        this.renderer = renderer;
+        this.fontName = fontName;
+        this.pixelResolution = pixelResolution;
+        this.brightness = brightness;
+        this.bitmaps = bitmaps;
+    }
+
+    /**
+     * renders the printable ASCII chars into a new atlas
+     * @param fontName font to render the chars in
+     * @param pixelResolution size of every char image
+     * @return the rendered atlas
+     */
+    public static GlyphAtlas render(String fontName, int pixelResolution) {
+        int count = LAST_CHAR - FIRST_CHAR + 1;
+        double[] brightness = new double[count];
+        long[][] bitmaps = new long[count][];
+        for (int i = 0; i < count; i++) {
+            boolean[][] bitmap = CharConverter.convertToBoolArray((char) (FIRST_CHAR + i), fontName,
+                    pixelResolution);
+            bitmaps[i] = pack(bitmap);
+            brightness[i] = countPixels(bitmaps[i]) / (double) (pixelResolution * pixelResolution);
+        }
+        return new GlyphAtlas(RENDERER, fontName, pixelResolution, brightness, bitmaps);
+    }
+
+    /**
+     * reads an atlas file
+     * @param path file to read
+     * @return the atlas in the file
+     * @throws IOException if the file cannot be read or is not a valid atlas
+     */
+    public static GlyphAtlas load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a glyph atlas: " + path);
+            }
+            String renderer = in.readUTF();
+            String fontName = in.readUTF();
+            int pixelResolution = in.readInt();
+            int firstChar = in.readChar();
+            int count = in.readInt();
+            if (firstChar != FIRST_CHAR || count != LAST_CHAR - FIRST_CHAR + 1 || pixelResolution <= 0) {
+                throw new IOException("unexpected glyph range in atlas: " + path);
+            }
+            double[] brightness = new double[count];
+            long[][] bitmaps = new long[count][bitmapLength(pixelResolution)];
+            for (int i = 0; i < count; i++) {
+                brightness[i] = in.readDouble();
+                for (int j = 0; j < bitmaps[i].length; j++) {
+                    bitmaps[i][j] = in.readLong();
+                }
+            }
+            return new GlyphAtlas(renderer, fontName, pixelResolution, brightness, bitmaps);
+        }
+    }
+
+    /**
+     * writes the atlas to a file, replacing it if it exists. the file is written under a temporary name
+     * and renamed, so readers never see it half written
+     * @param path file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "glyphs", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(renderer);
+                out.writeUTF(fontName);
+                out.writeInt(pixelResolution);
+                out.writeChar(FIRST_CHAR);
+                out.writeInt(brightness.length);
+                for (int i = 0; i < brightness.length; i++) {
+                    out.writeDouble(brightness[i]);
+                    for (long word : bitmaps[i]) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            // concurrent first runs each write their own file, and the last rename wins
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * loads the atlas of the given font and resolution from its default path, rendering and saving it if
+     * the file is missing or belongs to another font or resolution.
+     * @param fontName font of the atlas
+     * @param pixelResolution size of every char image
+     * @return the atlas
+     */
+    static GlyphAtlas loadOrRender(String fontName, int pixelResolution) {
+        Path path = defaultPath(fontName, pixelResolution);
+        if (Files.isRegularFile(path)) {
+            try {
+                GlyphAtlas atlas = load(path);
+                if (atlas.renderer.equals(RENDERER) && atlas.fontName.equals(fontName)
+                        && atlas.pixelResolution == pixelResolution) {
+                    return atlas;
+                }
+            } catch (IOException e) {
+                Logger.getGlobal().warning(String.format("Ignoring bad glyph atlas \"%s\"", path));
+            }
+        }
+        GlyphAtlas atlas = render(fontName, pixelResolution);
+        try {
+            atlas.save(path);
+        } catch (IOException e) {
+            Logger.getGlobal().warning(String.format("Failed to save glyph atlas to \"%s\"", path));
+        }
+        return atlas;
+    }
+
+    private static Path defaultPath(String fontName, int pixelResolution) {
+        String path = System.getProperty(ATLAS_PATH_PROPERTY);
+        if (path != null) {
+            return Paths.get(path);
+        }
+        String name = "glyphs_" + fontName.replaceAll("[^A-Za-z0-9]", "_") + "_" + pixelResolution + ".atlas";
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        Path cache = (cacheHome != null && !cacheHome.isEmpty()) ? Paths.get(cacheHome)
+                : Paths.get(System.getProperty("user.home"), ".cache");
+        return cache.resolve(CACHE_DIR).resolve(name);
+    }
+
+    /**
+     * checks whether a char is in the atlas
+     * @param c char to check
+     * @return true if c is a printable ASCII char
+     */
+    public boolean contains(char c) {
+        return c >= FIRST_CHAR && c <= LAST_CHAR;
+    }
+
+    /**
+     * gets the brightness of a char in the atlas
+     * @param c printable ASCII char
+     * @return ratio of white pixels in the char image, between 0 and 1
+     */
+    public double getBrightness(char c) {
+        return brightness[c - FIRST_CHAR];
+    }
+
+    /**
+     * gets the bitmap of a char in the atlas, one bit per pixel row by row, the lowest bit first.
+     * the array is shared and must not be changed.
+     * @param c printable ASCII char
+     * @return the packed bitmap
+     */
+    long[] getBitmap(char c) {
+        return bitmaps[c - FIRST_CHAR];
+    }
+
+    /**
+     * gets the font of the atlas
+     * @return font name
+     */
+    public String getFontName() {
+        return fontName;
+    }
+
+    /**
+     * gets the size of the char images in the atlas
+     * @return pixels per row
+     */
+    public int getPixelResolution() {
+        return pixelResolution;
+    }
+
+    private static int bitmapLength(int pixelResolution) {
+        return (pixelResolution * pixelResolution + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * packs a char image to one bit per pixel, row by row with the lowest bit first
+     * @param bitmap square char image
+     * @return the packed bitmap
+     */
+    static long[] pack(boolean[][] bitmap) {
+        int resolution = bitmap.length;
+        long[] packed = new long[bitmapLength(resolution)];
+        for (int y = 0; y < resolution; y++) {
+            for (int x = 0; x < resolution; x++) {
+                if (bitmap[y][x]) {
+                    int bit = y * resolution + x;
+                    packed[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+                }
+            }
+        }
+        return packed;
+    }
+
+    private static int countPixels(long[] bitmap) {
+        int count = 0;
+        for (long word : bitmap) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Generates the atlas file at build time.
+     *
+     * @param args optional path of the atlas file, the default path is used otherwise
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        GlyphAtlas atlas = render(CharConverter.FONT_NAME, CharConverter.DEFAULT_PIXEL_RESOLUTION);
+        Path path = args.length > 0 ? Paths.get(args[0])
+                : defaultPath(CharConverter.FONT_NAME, CharConverter.DEFAULT_PIXEL_RESOLUTION);
+        atlas.save(path);
+        System.out.println("Wrote glyph atlas to " + path);
+    }
+}
@@ -0,0 +1,87 @@
+package image_char_matching;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Package-private process-wide cache of glyph brightness values, shared by all the matchers.
+ * A glyph is rendered through CharConverter only the first time its brightness is requested, so later
+ * charset edits and new matchers never touch Java2D for it again. Printable ASCII chars in the default
+ * font and resolution come from the GlyphAtlas file instead, so they are not rendered at all once the
+ * atlas exists. The packed bitmaps of the glyphs, used for shape matching, are cached the same way.
+ * Safe to use from several threads.
+ */
+class GlyphCache {
+    private static final Map<GlyphKey, Double> BRIGHTNESS = new ConcurrentHashMap<>();
+    private static final Map<Character, long[]> BITMAPS = new ConcurrentHashMap<>();
+
+    private GlyphCache() {
+    }
+
+    /**
+     * gets the brightness of a char in the default font and resolution
+     * @param c char to get the brightness of
+     * @return ratio of white pixels in the char image, between 0 and 1
+     */
+    static double getBrightness(char c) {
+        return getBrightness(c, CharConverter.FONT_NAME, CharConverter.DEFAULT_PIXEL_RESOLUTION);
+    }
+
+    /**
+     * gets the brightness of a char, rendering it only if it is not cached yet
+     * @param c char to get the brightness of
+     * @param fontName font to render the char in
+     * @param pixelResolution size of the char image
+     * @return ratio of white pixels in the char image, between 0 and 1
+     */
+    static double getBrightness(char c, String fontName, int pixelResolution) {
+        if (fontName.equals(CharConverter.FONT_NAME) && pixelResolution == CharConverter.DEFAULT_PIXEL_RESOLUTION
+                && DefaultAtlas.ATLAS.contains(c)) {
+            return DefaultAtlas.ATLAS.getBrightness(c);
+        }
+        return BRIGHTNESS.computeIfAbsent(new GlyphKey(c, fontName, pixelResolution),
+                key -> renderBrightness(key.c(), key.fontName(), key.pixelResolution()));
+    }
+
+    /**
+     * gets the packed bitmap of a char in the default font and resolution, one bit per pixel row by row,
+     * the lowest bit first and set where the glyph is white. the array is shared and must not be changed.
+     * @param c char to get the bitmap of
+     * @return CharConverter.DEFAULT_PIXEL_RESOLUTION squared bits
+     */
+    static long[] getBitmap(char c) {
+        if (DefaultAtlas.ATLAS.contains(c)) {
+            return DefaultAtlas.ATLAS.getBitmap(c);
+        }
+        return BITMAPS.computeIfAbsent(c, key -> GlyphAtlas.pack(CharConverter.convertToBoolArray(key)));
+    }
+
+    /**
+     * determine a brightness value of a given char between 0 and 1. the brightness is the ratio between
+     * the white pixels and all the cells of a char image.
+     */
+    private static double renderBrightness(char c, String fontName, int pixelResolution) {
+        boolean[][] boolRepresentation = CharConverter.convertToBoolArray(c, fontName, pixelResolution);
+        int arrSize = boolRepresentation.length * boolRepresentation[0].length;
+        int count = 0;
+        for (boolean[] booleanLine : boolRepresentation) {
+            for (boolean booleanCell : booleanLine) {
+                if (booleanCell) {
+                    count++;
+                }
+            }
+        }
+        return count / (double) arrSize;
+    }
+
+    /**
+     * holds the atlas of the default font, loaded on first use
+     */
+    private static class DefaultAtlas {
+        static final GlyphAtlas ATLAS =
+                GlyphAtlas.loadOrRender(CharConverter.FONT_NAME, CharConverter.DEFAULT_PIXEL_RESOLUTION);
+    }
+
+    private record GlyphKey(char c, String fontName, int pixelResolution) {
+    }
+}
@@ -0,0 +1,115 @@
+package image_char_matching;
+
+import java.util.Arrays;
+
+/**
+ * Package-private immutable snapshot of a charset, compiled for matching sub-image shapes.
+ * Every char keeps its glyph scaled down to a gridSize X gridSize bitmap, packed in longs. A lookup
+ * first narrows the charset to the few chars nearest in brightness, found by a binary search, and then
+ * picks the one whose bitmap has the smallest Hamming distance to the sub-image, counted with
+ * Long.bitCount. So the cost of a lookup grows with the log of the charset size only.
+ */
+class ShapeTable {
+    private static final int CANDIDATES_PER_SIDE = 4; // chars looked at on each side of the nearest
+
+    private final int gridSize;
+    private final double[] brightnesses; // sorted brightness of every char
+    private final char[] chars; // char of every brightness, lowest ASCII first on equal brightness
+    private final long[][] bitmaps; // scaled glyph of every char
+    private final double minBrightness;
+    private final double maxBrightness;
+
+    /**
+     * compiles a table.
+     * @param chars the chars of the charset, must not be empty
+     * @param minBrightness brightness that 0 is mapped to
+     * @param maxBrightness brightness that 1 is mapped to
+     * @param gridSize side of the sub-image bitmaps, a power of 2 up to the glyph resolution
+     */
+    ShapeTable(char[] chars, double minBrightness, double maxBrightness, int gridSize) {
+        this.gridSize = gridSize;
+        this.minBrightness = minBrightness;
+        this.maxBrightness = maxBrightness;
+        Character[] sorted = new Character[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            sorted[i] = chars[i];
+        }
+        Arrays.sort(sorted, (a, b) -> {
+            int byBrightness = Double.compare(GlyphCache.getBrightness(a), GlyphCache.getBrightness(b));
+            return byBrightness != 0 ? byBrightness : Character.compare(a, b);
+        });
+        this.chars = new char[chars.length];
+        brightnesses = new double[chars.length];
+        bitmaps = new long[chars.length][];
+        for (int i = 0; i < sorted.length; i++) {
+            this.chars[i] = sorted[i];
+            brightnesses[i] = GlyphCache.getBrightness(sorted[i]);
+            bitmaps[i] = scale(GlyphCache.getBitmap(sorted[i]), CharConverter.DEFAULT_PIXEL_RESOLUTION, gridSize);
+        }
+    }
+
+    /**
+     * finds the char whose glyph differs from the bitmap in the fewest bits, among the chars nearest to
+     * the brightness
+     * @param brightness value between 0 and 1
+     * @param bitmap gridSize * gridSize bits, set where the sub-image is bright
+     * @return the char of the closest shape, nearest in brightness and then lowest in ASCII order on ties
+     */
+    char getChar(double brightness, long[] bitmap) {
+        double corrected = brightness * (maxBrightness - minBrightness) + minBrightness;
+        int index = Arrays.binarySearch(brightnesses, corrected);
+        int nearest = index >= 0 ? index : Math.min(-index - 1, brightnesses.length - 1);
+        int from = Math.max(0, nearest - CANDIDATES_PER_SIDE);
+        int to = Math.min(brightnesses.length, nearest + CANDIDATES_PER_SIDE + 1);
+        int words = wordsOf(gridSize);
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        double bestDiff = Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            int distance = 0;
+            long[] glyph = bitmaps[i];
+            for (int word = 0; word < words; word++) {
+                distance += Long.bitCount(glyph[word] ^ bitmap[word]);
+            }
+            double diff = Math.abs(brightnesses[i] - corrected);
+            if (distance < bestDistance || (distance == bestDistance && diff < bestDiff)) {
+                best = i;
+                bestDistance = distance;
+                bestDiff = diff;
+            }
+        }
+        return chars[best];
+    }
+
+    /**
+     * scales a packed square bitmap down. a pixel of the result is set when at least half of the block of
+     * pixels it covers is set
+     */
+    private static long[] scale(long[] bitmap, int size, int gridSize) {
+        int blockSize = size / gridSize;
+        long[] scaled = new long[wordsOf(gridSize)];
+        for (int y = 0; y < gridSize; y++) {
+            for (int x = 0; x < gridSize; x++) {
+                int set = 0;
+                for (int dy = 0; dy < blockSize; dy++) {
+                    for (int dx = 0; dx < blockSize; dx++) {
+                        int bit = (y * blockSize + dy) * size + x * blockSize + dx;
+                        set += (int) (bitmap[bit / Long.SIZE] >>> (bit % Long.SIZE)) & 1;
+                    }
+                }
+                if (2 * set >= blockSize * blockSize) {
+                    int bit = y * gridSize + x;
+                    scaled[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+                }
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * number of longs holding gridSize * gridSize bits
+     */
+    static int wordsOf(int gridSize) {
+        return (gridSize * gridSize + Long.SIZE - 1) / Long.SIZE;
+    }
+}
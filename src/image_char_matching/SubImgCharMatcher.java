@@ -7,9 +7,19 @@ import java.util.*;
  * between 0 and 1.
  */
 public class SubImgCharMatcher {
+    /**
+     * the largest side of the sub-image bitmaps of shape matching, the size the glyphs are rendered in
+     */
+    public static final int SHAPE_GRID_SIZE = CharConverter.DEFAULT_PIXEL_RESOLUTION;
+
     //fields
     private final TreeMap<Double, TreeSet<Character>> charsBrightness;
     private double max_brightness, min_brightness;
+    private volatile BrightnessTable table; // compiled charset, null after the charset changes
+    // compiled charsets for shape matching by log2 of the grid size, null after the charset changes
+    private volatile ShapeTable[] shapeTables =
+            new ShapeTable[Integer.numberOfTrailingZeros(SHAPE_GRID_SIZE) + 1];
+    private long charsetVersion; // incremented on every change of the charset
 
     /**
      * Constructs a SubImgCharMatcher object with the given character set.
@@ -45,58 +55,76 @@ public class SubImgCharMatcher {
 
     /**
      * Finds the char with the closest brightness to a given value.
+     * Safe to call from several threads at once, as long as the charset is not changed meanwhile.
      * @param brightness value between 0 and 1
      * @return a char in the set that best represent the brightness value.
      */
     public char getCharByImageBrightness(double brightness) {
-        // corrects the brightness to the range of brightnesses of the chars
-        double correctedBrightness = correctBrightness(brightness);
-        Double closestKey = findClosestKey(correctedBrightness);
-        //finds the best char with this brightness
-        TreeSet<Character> tree = charsBrightness.get(closestKey);
-        //can throw NullPointerException but we assume it's never
-
-//        return minHeap.peek();
-        return tree.first();
+        BrightnessTable currentTable = table;
+        if (currentTable == null) {
+            // concurrent callers may compile it more than once, but always to the same table
+            currentTable = compileTable();
+            table = currentTable;
+        }
+        return currentTable.getChar(brightness);
     }
 
     /**
-     * finds the brightness value closest to a given value
-     * @param brightness Value between 0 and 1
-     * @return A char with the brightness closest to brightness
+     * Finds the char whose glyph is closest in shape to a binarized sub-image. Only the few chars nearest
+     * to the brightness of the sub-image are compared, so the result keeps the tone of the image while
+     * edges and lines pick the glyphs that follow them.
+     * Safe to call from several threads at once, as long as the charset is not changed meanwhile.
+     * @param brightness value between 0 and 1
+     * @param bitmap gridSize * gridSize bits row by row, the lowest bit first, set where the sub-image is
+     *               bright, as ImageParser.extractSubImageBitmaps writes it
+     * @param gridSize side of the bitmap, a power of 2 up to SHAPE_GRID_SIZE
+     * @return the char in the set whose glyph differs from the bitmap in the fewest pixels
      */
-    private Double findClosestKey(double brightness) {
-        Double floorKey = charsBrightness.floorKey(brightness);
-        Double ceilingKey = charsBrightness.ceilingKey(brightness);
+    public char getCharByShape(double brightness, long[] bitmap, int gridSize) {
+        if (gridSize <= 0 || gridSize > SHAPE_GRID_SIZE || Integer.bitCount(gridSize) != 1) {
+            throw new IllegalArgumentException("grid size must be a power of 2 up to " + SHAPE_GRID_SIZE);
+        }
+        ShapeTable[] tables = shapeTables;
+        int level = Integer.numberOfTrailingZeros(gridSize);
+        ShapeTable shapeTable = tables[level];
+        if (shapeTable == null) {
+            // like the brightness table, concurrent callers may compile the same table more than once
+            shapeTable = new ShapeTable(getCharArray(), min_brightness, max_brightness, gridSize);
+            tables[level] = shapeTable;
+        }
+        return shapeTable.getChar(brightness, bitmap);
+    }
 
-        if (floorKey == null) {
-            return ceilingKey;
+    private char[] getCharArray() {
+        if (charsBrightness.isEmpty()) {
+            throw new IllegalStateException("The charset is empty.");
         }
-        else {
-            if (ceilingKey == null) {
-                return floorKey;
-            }
-            else {
-                double floorDiff = Math.abs(brightness - floorKey);
-                double ceilingDiff = Math.abs(brightness - ceilingKey);
-                //selects the value with the smallest absolute distance.
-                if (floorDiff <= ceilingDiff) {
-                    return floorKey;
-                } else {
-                    return ceilingKey;
-                }
-            }
+        Set<Character> all = getChars();
+        char[] chars = new char[all.size()];
+        int i = 0;
+        for (char c : all) {
+            chars[i++] = c;
         }
+        return chars;
     }
 
     /**
-     * Apllies a linear transformation to brightness, moving it from the range [0,1] to
-     * [min_brightness, max_brightness]
-     * @param brightness value in range [0,1]
-     * @return value in range [min_brightness, max_brightness]
+     * compiles the current charset into a lookup table. the lowest ASCII char represents each brightness
+     * @return table of the current charset
      */
-    private double correctBrightness(double brightness) {
-        return brightness * (max_brightness - min_brightness) + min_brightness;
+    private BrightnessTable compileTable() {
+        if (charsBrightness.isEmpty()) {
+            throw new IllegalStateException("The charset is empty.");
+        }
+        double[] brightnesses = new double[charsBrightness.size()];
+        char[] chars = new char[charsBrightness.size()];
+        int i = 0;
+        for (Map.Entry<Double, TreeSet<Character>> entry : charsBrightness.entrySet()) {
+            brightnesses[i] = entry.getKey();
+            chars[i] = entry.getValue().first();
+            i++;
+        }
+        return new BrightnessTable(brightnesses, chars, min_brightness, max_brightness);
     }
 
     /**
@@ -114,13 +142,16 @@ public class SubImgCharMatcher {
         }
         //checks if this brightness value already exist
         if (charsBrightness.containsKey(charBrightness)) {
-            charsBrightness.get(charBrightness).add(c);
+            if (charsBrightness.get(charBrightness).add(c)) {
+                charsetChanged();
+            }
         }
         else {
             // If the key doesn't exist, create a new priority queue and adds the character to it
             TreeSet<Character> charsTree = new TreeSet<>();
             charsTree.add(c);
             charsBrightness.put(charBrightness, charsTree);
+            charsetChanged();
         }
     }
 
@@ -132,7 +163,9 @@ public class SubImgCharMatcher {
         double charBrightness = determineBrightnessValue(c);
         if (charsBrightness.containsKey(charBrightness)) {
             TreeSet<Character> charTree = charsBrightness.get(charBrightness);
-            charTree.remove(c);
+            if (charTree.remove(c)) {
+                charsetChanged();
+            }
             if (charTree.isEmpty()) {
                 charsBrightness.remove(charBrightness);
                 //checks if min or max need to be updated
@@ -148,24 +181,33 @@ public class SubImgCharMatcher {
         }
     }
 
+    /**
+     * Gets the version of the charset. The version changes whenever a char is actually added or removed,
+     * so equal versions of the same matcher always match brightness values to the same chars.
+     *
+     * @return the current charset version
+     */
+    public long getCharsetVersion() {
+        return charsetVersion;
+    }
+
+    /**
+     * drops the compiled tables and moves to a new charset version
+     */
+    private void charsetChanged() {
+        table = null;
+        shapeTables = new ShapeTable[shapeTables.length];
+        charsetVersion++;
+    }
+
     /**
      * determine a brightness value of a given char between 0 and 1. the brightness is the ratio between
      * the white pixels and all the cells of a char image in font 'courier new'.
+     * the value is rendered once per process and then taken from the shared glyph cache.
      * @param c char to determine brightness
      * @return value between 0 and 1
      */
     private double determineBrightnessValue(char c) {
-        //gets the char pixels in courier font
-        boolean[][] boolRepresentation = CharConverter.convertToBoolArray(c);
-        int arrSize = boolRepresentation.length * boolRepresentation[0].length;
-        int count = 0;
-        for (boolean[] booleanLine : boolRepresentation) {
-            for (boolean booleanCell : booleanLine) {
-                if (booleanCell) {
-                    count++;
-                }
-            }
-        }
-        return count /(double) arrSize;
+        return GlyphCache.getBrightness(c);
     }
 }
@@ -0,0 +1,79 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of latencies in power of 2 microsecond buckets, cheap enough to record every
+ * call. Percentiles are estimated by the upper bound of their bucket, so they are within a factor of 2.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40; // bucket i holds latencies below 2^i microseconds
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Records one latency
+     *
+     * @param durationNanos the latency
+     */
+    public void record(long durationNanos) {
+        count.increment();
+        nanos.add(durationNanos);
+        long micros = Math.max(durationNanos / 1000, 0);
+        buckets.incrementAndGet(Math.min(Long.SIZE - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+    }
+
+    /**
+     * Gets the number of recorded latencies
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the sum of the recorded latencies
+     *
+     * @return total milliseconds
+     */
+    public double getTotalMillis() {
+        return nanos.sum() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Estimates a latency percentile by the upper bound of its bucket
+     *
+     * @param fraction the percentile, between 0 and 1
+     * @return the latency in milliseconds, 0 when nothing was recorded
+     */
+    public double percentile(double fraction) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets.get(bucket);
+            if (seen >= Math.ceil(fraction * total)) {
+                return (1L << bucket) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    /**
+     * Clears the recorded latencies
+     */
+    public void reset() {
+        count.reset();
+        nanos.reset();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            buckets.set(bucket, 0);
+        }
+    }
+}
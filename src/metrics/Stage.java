@@ -0,0 +1,27 @@
+package metrics;
+
+/**
+ * The stages of a conversion that are measured by StageMetrics.
+ */
+public enum Stage {
+    /**
+     * reading and decoding an image file
+     */
+    DECODE,
+    /**
+     * padding an image to power of 2 dimensions
+     */
+    PAD,
+    /**
+     * averaging the grayscale of the sub-images
+     */
+    AVERAGE,
+    /**
+     * matching sub-image brightness to chars, its pixels are the cells of the ASCII image
+     */
+    MATCH,
+    /**
+     * writing the ASCII art to an output
+     */
+    WRITE
+}
@@ -0,0 +1,38 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Package-private JFR event committed for every measured stage, so live runs can be profiled with
+ * Flight Recorder. The event costs nothing when no recording is enabled.
+ */
+@Name("ascii_art.Stage")
+@Label("ASCII Art Stage")
+@Category("ASCII Art")
+@Description("One stage of an image to ASCII art conversion")
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Active")
+    @Description("Time spent in the stage, less than the duration when other work is interleaved with it")
+    @Timespan
+    long active;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
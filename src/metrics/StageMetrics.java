@@ -0,0 +1,358 @@
+package metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide, thread-safe measurements of the conversion stages: a latency histogram, pixels, bytes
+ * and allocated bytes per stage, and the hit rates of registered caches.
+ * Every measurement is also committed as a JFR event, and the metrics are published over JMX as
+ * {@value #OBJECT_NAME}.
+ * <p>
+ * A stage is measured with a span:
+ * <pre>{@code
+ * try (StageMetrics.Span span = StageMetrics.start(Stage.DECODE)) {
+ *     ...
+ *     span.addPixels(width * height);
+ * }
+ * }</pre>
+ */
+public class StageMetrics implements StageMetricsMXBean {
+    /**
+     * JMX name of the metrics
+     */
+    public static final String OBJECT_NAME = "ascii_art:type=StageMetrics";
+    private static final StageMetrics INSTANCE = new StageMetrics();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_COUNTING = allocationCountingSupported();
+
+    private final Map<Stage, StageStats> stats = new EnumMap<>(Stage.class);
+    private final Map<String, LongSupplier[]> caches = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            Logger.getGlobal().warning("Stage metrics are not published over JMX: " + e.getMessage());
+        }
+    }
+
+    private StageMetrics() {
+        for (Stage stage : Stage.values()) {
+            stats.put(stage, new StageStats());
+        }
+    }
+
+    /**
+     * Starts measuring a stage on the current thread
+     *
+     * @param stage stage to measure
+     * @return the span, to be closed when the stage ends
+     */
+    public static Span start(Stage stage) {
+        return new Span(stage);
+    }
+
+    /**
+     * Starts measuring a stage whose work is interleaved with other stages on the current thread
+     *
+     * @param stage stage to measure
+     * @return the accumulator, to be closed when the stage ends
+     */
+    public static Accumulator accumulate(Stage stage) {
+        return new Accumulator(stage);
+    }
+
+    /**
+     * Records a measurement that was taken without a span, committing an event that ends now
+     *
+     * @param stage     measured stage
+     * @param nanos     duration
+     * @param pixels    pixels processed
+     * @param bytes     bytes read or written
+     * @param allocated bytes allocated
+     */
+    public static void record(Stage stage, long nanos, long pixels, long bytes, long allocated) {
+        StageEvent event = new StageEvent();
+        event.begin();
+        record(stage, event, nanos, pixels, bytes, allocated);
+    }
+
+    /**
+     * Registers a cache whose hit rate is reported, replacing a cache of the same name
+     *
+     * @param name   name of the cache
+     * @param hits   supplies the number of hits
+     * @param misses supplies the number of misses
+     */
+    public static void registerCache(String name, LongSupplier hits, LongSupplier misses) {
+        INSTANCE.caches.put(name, new LongSupplier[]{hits, misses});
+    }
+
+    /**
+     * Gets the metrics
+     *
+     * @return the process-wide metrics
+     */
+    public static StageMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the number of bytes the current thread allocated so far
+     *
+     * @return allocated bytes, or 0 if the JVM cannot count them
+     */
+    public static long allocatedBytes() {
+        if (!ALLOCATION_COUNTING) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        stats.forEach((stage, stageStats) -> values.put(stage.name(), stageStats.latency.getCount()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getTotalMillis() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        stats.forEach((stage, stageStats) -> values.put(stage.name(), stageStats.latency.getTotalMillis()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getPixels() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        stats.forEach((stage, stageStats) -> values.put(stage.name(), stageStats.pixels.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getBytes() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        stats.forEach((stage, stageStats) -> values.put(stage.name(), stageStats.bytes.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getAllocatedBytes() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        stats.forEach((stage, stageStats) -> values.put(stage.name(), stageStats.allocated.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        caches.forEach((name, counters) -> values.put(name, hitRate(counters)));
+        return values;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-8s %8s %10s %9s %9s %12s %12s %12s%n", "stage", "count",
+                "total ms", "p50 ms", "p99 ms", "pixels", "bytes", "allocated"));
+        stats.forEach((stage, stageStats) -> report.append(String.format(Locale.ROOT,
+                "%-8s %8d %10.1f %9.3f %9.3f %12d %12d %12d%n", stage.name().toLowerCase(Locale.ROOT),
+                stageStats.latency.getCount(), stageStats.latency.getTotalMillis(), stageStats.latency.percentile(0.5),
+                stageStats.latency.percentile(0.99), stageStats.pixels.sum(), stageStats.bytes.sum(),
+                stageStats.allocated.sum())));
+        caches.forEach((name, counters) -> report.append(String.format(Locale.ROOT,
+                "cache %s: %d hits, %d misses, %.0f%% hit rate%n", name, counters[0].getAsLong(),
+                counters[1].getAsLong(), 100 * hitRate(counters))));
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        stats.values().forEach(StageStats::reset);
+    }
+
+    /**
+     * adds a measurement to the totals of its stage, and ends and commits its event
+     */
+    private static void record(Stage stage, StageEvent event, long nanos, long pixels, long bytes, long allocated) {
+        INSTANCE.stats.get(stage).add(nanos, pixels, bytes, allocated);
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage = stage.name();
+            event.active = nanos;
+            event.pixels = pixels;
+            event.bytes = bytes;
+            event.allocated = allocated;
+            event.commit();
+        }
+    }
+
+    private static double hitRate(LongSupplier[] counters) {
+        long hits = counters[0].getAsLong();
+        long total = hits + counters[1].getAsLong();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    private static boolean allocationCountingSupported() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * The measurement of one stage, from start until closed. Not thread-safe, a span belongs to the
+     * thread that started it.
+     */
+    public static class Span implements AutoCloseable {
+        private final Stage stage;
+        private final StageEvent event = new StageEvent();
+        private final long startNanos;
+        private final long startAllocated;
+        private long pixels;
+        private long bytes;
+
+        private Span(Stage stage) {
+            this.stage = stage;
+            event.begin();
+            startAllocated = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * Counts pixels processed in the stage
+         *
+         * @param count number of pixels
+         */
+        public void addPixels(long count) {
+            pixels += count;
+        }
+
+        /**
+         * Counts bytes read or written in the stage
+         *
+         * @param count number of bytes
+         */
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        /**
+         * Ends the stage and records it
+         */
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = allocatedBytes() - startAllocated;
+            record(stage, event, nanos, pixels, bytes, allocated);
+        }
+    }
+
+    /**
+     * The measurement of one stage made of separate intervals, such as the writes of the rows of a
+     * streamed frame between which the next rows are matched. Only the time between resume and pause is
+     * counted, and the whole stage is recorded once when closed. Its event lasts from the first resume
+     * until closed, and its active time is the sum of the intervals. Not thread-safe, like a span.
+     */
+    public static class Accumulator implements AutoCloseable {
+        private final Stage stage;
+        private final StageEvent event = new StageEvent();
+        private boolean begun; // whether the event has begun, on the first resume
+        private long nanos;
+        private long allocated;
+        private long pixels;
+        private long bytes;
+        private long startNanos;
+        private long startAllocated;
+
+        private Accumulator(Stage stage) {
+            this.stage = stage;
+        }
+
+        /**
+         * Starts an interval of the stage
+         */
+        public void resume() {
+            if (!begun) {
+                event.begin();
+                begun = true;
+            }
+            startAllocated = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * Ends the current interval of the stage
+         */
+        public void pause() {
+            nanos += System.nanoTime() - startNanos;
+            allocated += allocatedBytes() - startAllocated;
+        }
+
+        /**
+         * Counts pixels processed in the stage
+         *
+         * @param count number of pixels
+         */
+        public void addPixels(long count) {
+            pixels += count;
+        }
+
+        /**
+         * Counts bytes read or written in the stage
+         *
+         * @param count number of bytes
+         */
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        /**
+         * Ends the stage and records the sum of its intervals
+         */
+        @Override
+        public void close() {
+            if (!begun) {
+                event.begin();
+            }
+            record(stage, event, nanos, pixels, bytes, allocated);
+        }
+    }
+
+    /**
+     * thread-safe totals and latency histogram of one stage
+     */
+    private static class StageStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder pixels = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+
+        void add(long durationNanos, long pixelCount, long byteCount, long allocatedBytes) {
+            latency.record(durationNanos);
+            pixels.add(pixelCount);
+            bytes.add(byteCount);
+            allocated.add(allocatedBytes);
+        }
+
+        void reset() {
+            latency.reset();
+            pixels.reset();
+            bytes.reset();
+            allocated.reset();
+        }
+    }
+}
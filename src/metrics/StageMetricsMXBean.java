@@ -0,0 +1,48 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of StageMetrics, registered as {@value StageMetrics#OBJECT_NAME}.
+ */
+public interface StageMetricsMXBean {
+    /**
+     * @return number of measurements of every stage
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return total milliseconds spent in every stage
+     */
+    Map<String, Double> getTotalMillis();
+
+    /**
+     * @return pixels processed by every stage
+     */
+    Map<String, Long> getPixels();
+
+    /**
+     * @return bytes read or written by every stage
+     */
+    Map<String, Long> getBytes();
+
+    /**
+     * @return bytes allocated by every stage, on the measuring thread
+     */
+    Map<String, Long> getAllocatedBytes();
+
+    /**
+     * @return hit rate of every registered cache, between 0 and 1
+     */
+    Map<String, Double> getCacheHitRates();
+
+    /**
+     * @return a human readable report of all the metrics
+     */
+    String getReport();
+
+    /**
+     * clears all the stage measurements
+     */
+    void reset();
+}
@@ -0,0 +1,76 @@
+package tests;
+
+import image.Image;
+import image.ImageParser;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the bytes allocated by loading and padding an image with the old Color[][] storage
+ * against the packed int[] storage of Image.
+ */
+public class BenchImageAllocation {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : "cat.jpeg";
+        // warm up both paths before measuring
+        legacyLoadAndPad(filename);
+        loadAndPad(filename);
+
+        long before = 0, after = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = allocatedBytes();
+            legacyLoadAndPad(filename);
+            before += allocatedBytes() - start;
+            start = allocatedBytes();
+            loadAndPad(filename);
+            after += allocatedBytes() - start;
+        }
+        System.out.printf("Color[][] storage: %d KB per load%n", before / ROUNDS / 1024);
+        System.out.printf("int[] storage:     %d KB per load%n", after / ROUNDS / 1024);
+    }
+
+    private static Image loadAndPad(String filename) throws IOException {
+        return ImageParser.padImage(new Image(filename));
+    }
+
+    /**
+     * replicates the previous Image(String) and padImage, which boxed every pixel in a Color.
+     */
+    private static Color[][] legacyLoadAndPad(String filename) throws IOException {
+        BufferedImage im = ImageIO.read(new File(filename));
+        Color[][] pixels = new Color[im.getHeight()][im.getWidth()];
+        for (int i = 0; i < im.getHeight(); i++) {
+            for (int j = 0; j < im.getWidth(); j++) {
+                pixels[i][j] = new Color(im.getRGB(j, i));
+            }
+        }
+        int newHeight = ImageParser.getPaddedSize(im.getHeight());
+        int newWidth = ImageParser.getPaddedSize(im.getWidth());
+        int heightMargin = (newHeight - im.getHeight()) / 2;
+        int widthMargin = (newWidth - im.getWidth()) / 2;
+        Color[][] padded = new Color[newHeight][newWidth];
+        for (int row = 0; row < newHeight; row++) {
+            for (int col = 0; col < newWidth; col++) {
+                if (row < heightMargin || row >= im.getHeight() + heightMargin ||
+                        col < widthMargin || col >= im.getWidth() + widthMargin) {
+                    padded[row][col] = Color.WHITE;
+                } else {
+                    padded[row][col] = pixels[row - heightMargin][col - widthMargin];
+                }
+            }
+        }
+        return padded;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -1,14 +1,26 @@
 package tests;
 
+import image.FrameGrayscale;
+import image.GrayscalePyramid;
 import image.Image;
 import image.ImageParser;
+import image.TiledImage;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class TestImageParser {
     public static void main(String[] args) throws IOException {
         testPadding();
         testSubImageGrayScale();
+        testPyramid();
+        testFrameGrayscale();
+        testTiledImage();
+        testSubsampling();
+        testColors();
     }
 
     public static void testPadding() throws IOException {
@@ -26,4 +38,90 @@ public class TestImageParser {
         assert grays[0].length == 128;
 
     }
+
+    public static void testPyramid() throws IOException {
+        Image paddedIm = ImageParser.padImage(new Image("cat.jpeg"));
+        GrayscalePyramid pyramid = new GrayscalePyramid(paddedIm, 1 << 20);
+        // going down derives levels from the cached finer ones, going up reads the image again
+        for (int resolution : new int[]{512, 256, 128, 64, 2, 128, 1024}) {
+            double[][] expected = ImageParser.extractSubImageGrayscale(paddedIm, resolution);
+            assert Arrays.deepEquals(pyramid.getGrayscale(resolution), expected);
+        }
+        assert pyramid.getCachedBytes() <= pyramid.getBudgetBytes();
+        assert pyramid.getHits() == 1;
+    }
+
+    public static void testFrameGrayscale() throws IOException {
+        BufferedImage frame = ImageIO.read(new File("cat.jpeg"));
+        Image paddedIm = ImageParser.padImage(new Image("cat.jpeg"));
+        FrameGrayscale grid = new FrameGrayscale(frame.getWidth(), frame.getHeight(), 128);
+        boolean[] changed = new boolean[grid.getCellCount()];
+        assert grid.update(frame, changed) == changed.length;
+        assert Arrays.deepEquals(grid.getGrayscale(), ImageParser.extractSubImageGrayscale(paddedIm, 128));
+        // an unchanged frame changes no cells, a changed pixel changes exactly its cell
+        assert grid.update(frame, changed) == 0;
+        frame.setRGB(0, 0, 0xFF000000 | ~frame.getRGB(0, 0));
+        assert grid.update(frame, changed) == 1;
+    }
+
+    public static void testTiledImage() throws IOException {
+        Image paddedIm = ImageParser.padImage(new Image("cat.jpeg"));
+        // a small band budget splits the image into many bands
+        TiledImage tiled = new TiledImage("cat.jpeg", 50_000);
+        GrayscalePyramid pyramid = new GrayscalePyramid(tiled, 1 << 20);
+        assert tiled.getPaddedWidth() == paddedIm.getWidth() && tiled.getPaddedHeight() == paddedIm.getHeight();
+        for (int resolution : new int[]{1024, 128, 2, 64}) {
+            double[][] expected = ImageParser.extractSubImageGrayscale(paddedIm, resolution);
+            assert Arrays.deepEquals(tiled.extractSubImageGrayscale(resolution), expected);
+            assert Arrays.deepEquals(pyramid.getGrayscale(resolution), expected);
+        }
+    }
+
+    public static void testSubsampling() throws IOException {
+        Image paddedIm = ImageParser.padImage(new Image("cat.jpeg"));
+        TiledImage tiled = new TiledImage("cat.jpeg");
+        double tolerance = TiledImage.DEFAULT_TOLERANCE;
+        assert tiled.getSubsampling(128, tolerance) == 1;
+        assert tiled.getSubsampling(4, tolerance) == 8;
+        for (int resolution : new int[]{2, 4, 8, 16}) {
+            double[][] expected = ImageParser.extractSubImageGrayscale(paddedIm, resolution);
+            double[][] sampled = tiled.extractSubImageGrayscale(resolution, tolerance);
+            for (int row = 0; row < resolution; row++) {
+                for (int col = 0; col < resolution; col++) {
+                    assert Math.abs(sampled[row][col] - expected[row][col]) <= tolerance;
+                }
+            }
+        }
+        // once the whole image is decoded, coarse levels are exact too
+        GrayscalePyramid pyramid = new GrayscalePyramid(tiled, 1 << 20, tolerance, Long.MAX_VALUE);
+        pyramid.getGrayscale(128);
+        assert Arrays.deepEquals(pyramid.getGrayscale(4), ImageParser.extractSubImageGrayscale(paddedIm, 4));
+        // and the estimates cached before, or halved from them, are not served anymore
+        pyramid = new GrayscalePyramid(tiled, 1 << 20, tolerance, Long.MAX_VALUE);
+        pyramid.getGrayscale(4);
+        pyramid.getGrayscale(2);
+        pyramid.getGrayscale(128);
+        for (int resolution : new int[]{4, 2}) {
+            double[][] expected = ImageParser.extractSubImageGrayscale(paddedIm, resolution);
+            assert Arrays.deepEquals(pyramid.getGrayscale(resolution), expected);
+        }
+        assert pyramid.getHits() == 0;
+    }
+
+    public static void testColors() throws IOException {
+        Image paddedIm = ImageParser.padImage(new Image("cat.jpeg"));
+        double[][] grays = new double[128][128];
+        int[][] colors = new int[128][128];
+        ImageParser.extractSubImageColors(paddedIm, 128, grays, colors);
+        assert Arrays.deepEquals(grays, ImageParser.extractSubImageGrayscale(paddedIm, 128));
+
+        // a red image of 3 x 2 is padded to 4 x 2 with white on the right, so the right cell mixes both
+        int red = 0xFFFF0000;
+        Image redIm = new Image(new int[]{red, red, red, red, red, red}, 3, 2);
+        grays = new double[2][2];
+        colors = new int[2][2];
+        ImageParser.extractSubImageColors(redIm, 2, grays, colors);
+        assert colors[0][0] == 0xFF0000;
+        assert colors[0][1] == 0xFF8080;
+    }
 }
@@ -0,0 +1,76 @@
+package tests;
+
+import ascii_art.AsciiArtAlgorithm;
+import ascii_output.ConsoleAsciiOutput;
+import ascii_output.HtmlAsciiOutput;
+import image.GrayscalePyramid;
+import image.Image;
+import image.ImageParser;
+import image_char_matching.SubImgCharMatcher;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestMetrics {
+    private static final String STAGE_EVENT = "ascii_art.Stage";
+
+    public static void main(String[] args) throws IOException {
+        testStageEvents();
+    }
+
+    public static void testStageEvents() throws IOException {
+        Image[] padded = new Image[1];
+        assert recordStages(() -> padded[0] = ImageParser.padImage(new Image("cat.jpeg")))
+                .containsAll(Set.of("DECODE", "AVERAGE", "PAD"));
+
+        // the streamed matching and the writes between its bands are measured by accumulators
+        SubImgCharMatcher matcher = new SubImgCharMatcher(new char[]{'0', '1', '2', '3', '4'});
+        AsciiArtAlgorithm algorithm = new AsciiArtAlgorithm(padded[0], 128, matcher);
+        assert recordStages(() -> algorithm.run(new ConsoleAsciiOutput(new StringWriter())))
+                .equals(Set.of("MATCH", "WRITE"));
+        assert recordStages(() -> algorithm.run(new HtmlAsciiOutput(
+                Channels.newChannel(new ByteArrayOutputStream()), "Courier New", false)))
+                .equals(Set.of("MATCH", "WRITE"));
+
+        // and so is the averaging of a pyramid
+        GrayscalePyramid pyramid = new GrayscalePyramid(padded[0], 1 << 20);
+        assert recordStages(() -> pyramid.getGrayscale(64)).equals(Set.of("AVERAGE"));
+        assert recordStages(() -> pyramid.getGrayscale(32)).equals(Set.of("AVERAGE"));
+    }
+
+    /**
+     * runs an action while recording, and gets the stages of the events it committed
+     */
+    private static Set<String> recordStages(Action action) throws IOException {
+        Path file = Files.createTempFile("stages", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(STAGE_EVENT);
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+            Set<String> stages = new HashSet<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals(STAGE_EVENT)) {
+                    stages.add(event.getString("stage"));
+                }
+            }
+            return stages;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+}
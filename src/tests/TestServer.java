@@ -0,0 +1,96 @@
+package tests;
+
+import ascii_art.AsciiArtServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TestServer {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // a single conversion thread, which the test can hold busy
+        ExecutorService renderExecutor = Executors.newSingleThreadExecutor();
+        AsciiArtServer server = new AsciiArtServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                renderExecutor);
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] cat = Files.readAllBytes(Paths.get("cat.jpeg"));
+
+            // while the conversion of the first request is held back, the identical ones wait for its result
+            CountDownLatch release = new CountDownLatch(1);
+            renderExecutor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                responses.add(client.sendAsync(post(base + "/render?res=64&chars=all", cat),
+                        HttpResponse.BodyHandlers.ofString()));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (server.getCoalescedRequests() < 3 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            String first = responses.get(0).join().body();
+            for (CompletableFuture<HttpResponse<String>> response : responses) {
+                assert response.join().statusCode() == 200;
+                assert response.join().body().equals(first);
+            }
+            assert first.split(System.lineSeparator()).length == 64;
+            assert server.getCoalescedRequests() == 3;
+
+            // a small file that would decode to too many pixels is rejected before decoding
+            BufferedImage huge = new BufferedImage(6000, 6000, BufferedImage.TYPE_BYTE_BINARY);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(huge, "png", png);
+            HttpResponse<String> tooLarge = client.sendAsync(post(base + "/render", png.toByteArray()),
+                    HttpResponse.BodyHandlers.ofString()).join();
+            assert tooLarge.statusCode() == 413;
+
+            HttpResponse<String> html = client.sendAsync(post(base + "/render?format=html&color=true", cat),
+                    HttpResponse.BodyHandlers.ofString()).join();
+            assert html.statusCode() == 200 && html.body().contains("<span style=\"color:#");
+
+            HttpResponse<String> badResolution = client.sendAsync(post(base + "/render?res=3", cat),
+                    HttpResponse.BodyHandlers.ofString()).join();
+            assert badResolution.statusCode() == 400;
+
+            HttpResponse<String> badImage = client.sendAsync(post(base + "/render", new byte[]{1, 2, 3}),
+                    HttpResponse.BodyHandlers.ofString()).join();
+            assert badImage.statusCode() == 400;
+
+            HttpResponse<String> metrics = client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/metrics"))
+                    .build(), HttpResponse.BodyHandlers.ofString()).join();
+            assert metrics.statusCode() == 200 && metrics.body().contains(AsciiArtServer.RENDER_PATH);
+            System.out.println(metrics.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static HttpRequest post(String uri, byte[] body) {
+        return HttpRequest.newBuilder(URI.create(uri)).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+}
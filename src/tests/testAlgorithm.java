@@ -3,10 +3,16 @@ package tests;
 import ascii_art.AsciiArtAlgorithm;
 import ascii_output.ConsoleAsciiOutput;
 import ascii_output.HtmlAsciiOutput;
+import ascii_output.StreamingAsciiOutput;
 import image.Image;
+import image.ImageParser;
+import image_char_matching.CharConverter;
 import image_char_matching.SubImgCharMatcher;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class testAlgorithm {
     public static void main(String[] args) throws IOException {
@@ -17,6 +23,26 @@ public class testAlgorithm {
             System.out.println("Test 1 failed");
         }
         testCat();
+        if(testParallel()) {
+            System.out.println("Parallel test succeed");
+        } else {
+            System.out.println("Parallel test failed");
+        }
+        if(testStreaming()) {
+            System.out.println("Streaming test succeed");
+        } else {
+            System.out.println("Streaming test failed");
+        }
+        if(testIncremental()) {
+            System.out.println("Incremental test succeed");
+        } else {
+            System.out.println("Incremental test failed");
+        }
+        if(testShape()) {
+            System.out.println("Shape test succeed");
+        } else {
+            System.out.println("Shape test failed");
+        }
     }
 
     public static boolean testBoard() throws IOException {
@@ -55,4 +81,152 @@ public class testAlgorithm {
         output.out(result);
 
     }
+
+    public static boolean testParallel() throws IOException {
+        Image im = new Image("cat.jpeg");
+        char[] chars = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+        SubImgCharMatcher matcher = new SubImgCharMatcher(chars);
+        for (int resolution = 2; resolution <= 512; resolution *= 2) {
+            char[][] sequential = new AsciiArtAlgorithm(im, resolution, matcher).run();
+            char[][] parallel = new AsciiArtAlgorithm(im, resolution, matcher, 8).run();
+            if (!Arrays.deepEquals(sequential, parallel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean testStreaming() throws IOException {
+        Image im = new Image("cat.jpeg");
+        char[] chars = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+        SubImgCharMatcher matcher = new SubImgCharMatcher(chars);
+        List<char[]> rows = new ArrayList<>();
+        StreamingAsciiOutput collector = collector(rows);
+        for (int parallelism : new int[]{1, 8}) {
+            AsciiArtAlgorithm alg = new AsciiArtAlgorithm(im, 256, matcher, parallelism);
+            alg.run(collector);
+            if (!Arrays.deepEquals(alg.run(), rows.toArray(new char[0][]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static StreamingAsciiOutput collector(List<char[]> rows) {
+        return new StreamingAsciiOutput() {
+            @Override
+            public void begin(int rowCount, int columns) {
+                rows.clear();
+            }
+
+            @Override
+            public void row(char[] row) {
+                rows.add(row.clone());
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+    }
+
+    public static boolean testIncremental() throws IOException {
+        Image im = new Image("cat.jpeg");
+        char[] chars = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+        SubImgCharMatcher matcher = new SubImgCharMatcher(chars);
+        AsciiArtAlgorithm alg = new AsciiArtAlgorithm(im, 256, matcher);
+        AsciiArtAlgorithm streamed = new AsciiArtAlgorithm(im, 256, matcher, 8);
+        List<char[]> rows = new ArrayList<>();
+        alg.runIncremental();
+        streamed.runIncremental(collector(rows));
+        if (!Arrays.deepEquals(alg.run(), rows.toArray(new char[0][]))) {
+            return false;
+        }
+        // edits that move the brightness range as well as ones inside it
+        String edits = "+a-0+ -9+#+.-a-#+0- ";
+        for (int i = 0; i < edits.length(); i += 2) {
+            if (edits.charAt(i) == '+') {
+                matcher.addChar(edits.charAt(i + 1));
+            } else {
+                matcher.removeChar(edits.charAt(i + 1));
+            }
+            if (!Arrays.deepEquals(alg.runIncremental(), alg.run())) {
+                return false;
+            }
+            streamed.runIncremental(collector(rows));
+            if (!Arrays.deepEquals(alg.run(), rows.toArray(new char[0][]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean testShape() throws IOException {
+        // flat sub-images are matched by brightness alone
+        Image board = new Image("board.jpeg");
+        SubImgCharMatcher matcher = new SubImgCharMatcher(new char[]{'m', 'o'});
+        if (!checkResult(new AsciiArtAlgorithm(board, 2, matcher, 1, true).run())) {
+            return false;
+        }
+
+        // sub-images of the same brightness, half dark on the left or on the top
+        int size = 64;
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean dark = y < size / 2 ? x % 16 < 8 : y % 16 < 8;
+                pixels[y * size + x] = dark ? 0xFF000000 : 0xFFFFFFFF;
+            }
+        }
+        Image edges = new Image(pixels, size, size);
+        char[] chars = new char[95];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (' ' + i);
+        }
+        matcher = new SubImgCharMatcher(chars);
+        char[][] byBrightness = new AsciiArtAlgorithm(edges, 4, matcher).run();
+        char[][] byShape = new AsciiArtAlgorithm(edges, 4, matcher, 1, true).run();
+        printResult(byShape);
+        if (byBrightness[0][0] != byBrightness[3][0]) {
+            return false;
+        }
+        // grayscale computed along with the colors gives the same shapes as the image alone
+        double[][] grayscale = new double[4][4];
+        ImageParser.extractSubImageColors(edges, 4, grayscale, new int[4][4]);
+        if (!Arrays.deepEquals(byShape, new AsciiArtAlgorithm(grayscale, edges, matcher, 1).run())) {
+            return false;
+        }
+        // wherever shape matching picks another glyph, that glyph is closer to the binarized cell
+        int gridSize = SubImgCharMatcher.SHAPE_GRID_SIZE;
+        long[][][] bitmaps = new long[4][4][];
+        ImageParser.extractSubImageBitmaps(edges, 4, gridSize, 0.25, bitmaps, 0, 4);
+        int closer = 0;
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                int shapeDistance = distance(byShape[row][col], bitmaps[row][col], gridSize);
+                int brightnessDistance = distance(byBrightness[row][col], bitmaps[row][col], gridSize);
+                if (byShape[row][col] != byBrightness[row][col] && shapeDistance >= brightnessDistance) {
+                    return false;
+                }
+                closer += shapeDistance < brightnessDistance ? 1 : 0;
+            }
+        }
+        return closer > 0;
+    }
+
+    /**
+     * counts the pixels in which the glyph of a char differs from a sub-image bitmap
+     */
+    private static int distance(char c, long[] bitmap, int gridSize) {
+        boolean[][] glyph = CharConverter.convertToBoolArray(c);
+        int distance = 0;
+        for (int y = 0; y < gridSize; y++) {
+            for (int x = 0; x < gridSize; x++) {
+                int bit = y * gridSize + x;
+                boolean bright = (bitmap[bit / Long.SIZE] >>> (bit % Long.SIZE) & 1) != 0;
+                distance += glyph[y][x] != bright ? 1 : 0;
+            }
+        }
+        return distance;
+    }
 }